@@ -0,0 +1,127 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented benchmark comparing the file and MediaStore export storage.
+ * Each backend publishes a retention window of segments, then has one record appended to a segment and published at
+ * a time as received messages are, then withdraws the segments. The file backend only requests a media scan, which
+ * finishes in the background, so its times do not include the scan itself.
+ * Backends which cannot be written to on the test device are skipped. Files are named so that neither the bundle nor
+ * retention will pick them up, and are removed afterwards.
+ * Results are logged under the "TrackAndTrace Benchmark" tag and reported as instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExportStorageBenchmark {
+    private static final int SEGMENTS = RetentionEngine.RETENTION_DAYS;
+    private static final int RECORDS_PER_SEGMENT = 500;
+    private static final int APPENDS = 100;
+    private static final String RECORD = "\"07700900123\",\"Checked in at table 4, party of two\"\r\n";
+
+    @Test
+    public void publishAppendAndRemove() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        List<ExportStorage> backends = new ArrayList<ExportStorage>();
+        backends.add(new FileExportStorage(context));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            backends.add(new MediaStoreExportStorage(context));
+
+        StringBuilder results = new StringBuilder();
+        for (ExportStorage storage : backends) {
+            File directory = storage.getDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                results.append(storage.getName()).append(": skipped, folder cannot be written\n");
+                continue;
+            }
+            results.append(run(storage)).append('\n');
+        }
+
+        String result = results.toString();
+        Log.i("TrackAndTrace Benchmark", result);
+        Bundle status = new Bundle();
+        status.putString("ExportStorageBenchmark", result);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    /**
+     * Method to time one backend.
+     *
+     * @param storage the backend.
+     * @return the times taken.
+     * @throws IOException if the backend could not publish or withdraw the files.
+     */
+    private static String run(ExportStorage storage) throws IOException {
+        List<File> segments = new ArrayList<File>();
+        boolean removed = false;
+        try {
+            for (int i = 0; i < SEGMENTS; i++) {
+                File segment = new File(storage.getDirectory(), "benchmark-" + i + DailySegmentStore.SEGMENT_EXT);
+                append(segment, RECORDS_PER_SEGMENT);
+                segments.add(segment);
+            }
+
+            long start = System.nanoTime();
+            storage.publish(segments);
+            long publishNanos = System.nanoTime() - start;
+
+            File today = segments.get(SEGMENTS - 1);
+            long appendNanos = 0;
+            for (int i = 0; i < APPENDS; i++) {
+                append(today, 1);
+                start = System.nanoTime();
+                storage.publishAppended(Collections.singletonList(today));
+                appendNanos += System.nanoTime() - start;
+            }
+
+            start = System.nanoTime();
+            for (File segment : segments)
+                assertTrue(segment.delete());
+            storage.remove(segments);
+            long removeNanos = System.nanoTime() - start;
+            removed = true;
+
+            return storage.getName() + ": publish " + SEGMENTS + " segments " + (publishNanos / 1000000) + "ms, " +
+                    "append one record " + (appendNanos / APPENDS / 1000) + "us, " +
+                    "remove " + SEGMENTS + " segments " + (removeNanos / 1000000) + "ms";
+        }
+        finally {
+            if (!removed) {
+                for (File segment : segments)
+                    segment.delete();
+                storage.remove(segments);
+            }
+        }
+    }
+
+    private static void append(File file, int records) throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            byte[] record = RECORD.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < records; i++)
+                out.write(record);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
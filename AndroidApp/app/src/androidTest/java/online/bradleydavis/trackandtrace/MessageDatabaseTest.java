@@ -0,0 +1,98 @@
+package online.bradleydavis.trackandtrace;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test for the message database's indexes and queries, against a database kept in memory so the app's own
+ * copy is left alone.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageDatabaseTest {
+    private static final long MINUTE = 60 * 1000L;
+    private static final long NOW = 1600000000000L;
+
+    private MessageDatabase database;
+
+    @Before
+    public void setUp() {
+        database = new MessageDatabase(InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+        database.insertAll(Arrays.asList(
+                new SingleMessage(1, "+447700900001", NOW, "Table 4, Jo O'Brien"),
+                new SingleMessage(2, "07700900001", NOW + MINUTE, "Back again - table 12"),
+                new SingleMessage(3, "+447700900002", NOW + 2 * MINUTE, "Table 4 OR the bar")));
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void findByNumber_matchesNationalAndInternationalForms() {
+        List<SingleMessage> found = database.findByNumber("07700 900001", NOW, NOW + 10 * MINUTE);
+
+        assertEquals(2, found.size());
+        assertEquals(2, found.get(0).getId());
+        assertEquals(1, found.get(1).getId());
+        assertTrue(database.findByNumber("+447700900001", NOW + MINUTE + 1, NOW + 10 * MINUTE).isEmpty());
+    }
+
+    @Test
+    public void findBetween_isInclusiveOfTheStartOnly() {
+        List<SingleMessage> found = database.findBetween(NOW, NOW + 2 * MINUTE);
+
+        assertEquals(2, found.size());
+        assertEquals(2, found.get(0).getId());
+        assertEquals(1, found.get(1).getId());
+    }
+
+    @Test
+    public void search_treatsOperatorsAndPunctuationAsText() {
+        assertEquals(1, database.search("O'Brien", 10).size());
+        assertEquals(1, database.search("again - tab", 10).size());
+        assertEquals(1, database.search("table 4 OR", 10).size());
+        assertEquals(2, database.search("\"table 4", 10).size());
+        assertTrue(database.search("\"-*", 10).isEmpty());
+    }
+
+    @Test
+    public void insertAll_replacesAMessageWhoseIdIsReused() {
+        database.insertAll(Arrays.asList(new SingleMessage(1, "+447700900003", NOW + 5 * MINUTE, "Table 9")));
+
+        assertTrue(database.findByNumber("+447700900001", NOW, NOW + MINUTE).isEmpty());
+        assertEquals(1, database.findByNumber("+447700900003", NOW, NOW + 10 * MINUTE).size());
+        //the old body has left the full text index along with its row.
+        assertTrue(database.search("Brien", 10).isEmpty());
+        assertEquals(1, database.search("table 9", 10).size());
+    }
+
+    @Test
+    public void writeCsv_includesEveryMessageAtTheCursor() throws IOException {
+        database.insertAll(Arrays.asList(new SingleMessage(4, "+447700900004", NOW + MINUTE, "Table 7")));
+        CsvRecordWriter writer = new CsvRecordWriter(new ByteArrayOutputStream());
+
+        //both messages sharing the cursor's millisecond are sent, along with the newer one.
+        assertEquals(3, database.writeCsv(NOW + MINUTE, false, writer, "device-1"));
+    }
+
+    @Test
+    public void toMatchQuery_quotesEveryWord() {
+        assertEquals("\"table\" \"4*\"", MessageDatabase.toMatchQuery("Table 4"));
+        assertEquals("\"o\" \"brien\" \"or\"", MessageDatabase.toMatchQuery("O'Brien OR "));
+        assertEquals("", MessageDatabase.toMatchQuery(" \"-* "));
+        assertEquals("", MessageDatabase.toMatchQuery(null));
+    }
+}
@@ -0,0 +1,84 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.ListView;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented benchmark comparing the time taken to bind a message row with and without view recycling.
+ * Results are logged under the "TrackAndTrace Benchmark" tag and reported as instrumentation status.
+ * Run it on its own on a connected device with
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=online.bradleydavis.trackandtrace.MessagesArrayAdapterBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessagesArrayAdapterBenchmark {
+    private static final int ROWS = 5000;
+    private static final int WARMUP_ROWS = 500;
+
+    @Test
+    public void bindTimePerRow() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+                ArrayList<SingleMessage> list = new ArrayList<SingleMessage>();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < ROWS; i++)
+                    list.add(new SingleMessage(i, "0770090" + (1000 + i), now - i * 60000L,
+                            "Checked in at table " + i));
+                MessagesArrayAdapter adapter = new MessagesArrayAdapter(context, list);
+                ListView parent = new ListView(context);
+
+                //without recycling, every row is inflated as the adapter used to do.
+                bind(adapter, parent, false, WARMUP_ROWS);
+                long inflatingNanos = bind(adapter, parent, false, ROWS);
+
+                //with recycling, the same row is rebound as a ListView does while scrolling.
+                bind(adapter, parent, true, WARMUP_ROWS);
+                long recyclingNanos = bind(adapter, parent, true, ROWS);
+
+                String result = "bind per row: inflating " + (inflatingNanos / ROWS) + "ns, recycling " +
+                        (recyclingNanos / ROWS) + "ns over " + ROWS + " rows";
+                Log.i("TrackAndTrace Benchmark", result);
+                Bundle status = new Bundle();
+                status.putString("MessagesArrayAdapterBenchmark", result);
+                InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+
+                View first = adapter.getView(0, null, parent);
+                assertSame(first, adapter.getView(1, first, parent));
+            }
+        });
+    }
+
+    /**
+     * Method to bind a number of rows and time how long it takes.
+     *
+     * @param adapter the adapter to bind rows with.
+     * @param parent the parent the rows belong to.
+     * @param recycle whether or not to pass the previous row back in as the convert view.
+     * @param rows the number of rows to bind.
+     * @return the total time taken in nanoseconds.
+     */
+    private static long bind(MessagesArrayAdapter adapter, ListView parent, boolean recycle, int rows) {
+        View convertView = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            View row = adapter.getView(i % adapter.getCount(), convertView, parent);
+            if (recycle)
+                convertView = row;
+        }
+        return System.nanoTime() - start;
+    }
+}
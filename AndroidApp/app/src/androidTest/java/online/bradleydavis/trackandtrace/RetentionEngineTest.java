@@ -0,0 +1,87 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumented test showing that the retention engine really removes expired messages from the SMS provider.
+ * Only the default messaging application may write to the provider, so this is skipped unless the app has been
+ * made the default on the test device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RetentionEngineTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final String ADDRESS = "+447700900999";
+
+    private Context context;
+    private ContentResolver contentResolver;
+    private final List<Uri> inserted = new ArrayList<Uri>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        contentResolver = context.getContentResolver();
+        assumeTrue(context.getPackageName().equals(Telephony.Sms.getDefaultSmsPackage(context)));
+    }
+
+    @After
+    public void tearDown() {
+        for (Uri uri : inserted)
+            contentResolver.delete(uri, null, null);
+    }
+
+    @Test
+    public void deleteExpiredMessages_removesOnlyExpiredReceivedMessages() {
+        long cutoff = RetentionEngine.getCutoff();
+        Uri expired = insert(Telephony.Sms.Inbox.CONTENT_URI, cutoff - DAY);
+        Uri current = insert(Telephony.Sms.Inbox.CONTENT_URI, cutoff + DAY);
+        Uri sent = insert(Telephony.Sms.Sent.CONTENT_URI, cutoff - DAY);
+
+        RetentionEngine engine = new RetentionEngine(context, null, null, null);
+        assertTrue(engine.deleteExpiredMessages(cutoff) >= 1);
+
+        assertFalse(exists(expired));
+        assertTrue(exists(current));
+        assertTrue(exists(sent));
+    }
+
+    private Uri insert(Uri box, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, ADDRESS);
+        values.put(Telephony.Sms.DATE, date);
+        values.put(Telephony.Sms.BODY, "Retention test");
+        Uri uri = contentResolver.insert(box, values);
+        assertNotNull(uri);
+        inserted.add(uri);
+        return uri;
+    }
+
+    private boolean exists(Uri uri) {
+        Cursor cursor = contentResolver.query(uri, new String[] {Telephony.Sms._ID}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount() > 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
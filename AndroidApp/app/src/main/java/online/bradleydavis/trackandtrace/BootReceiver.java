@@ -0,0 +1,19 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Class which schedules the background jobs again once the device has restarted, as the job which fires on changes to
+ * the SMS provider is not kept across restarts.
+ *
+ * @author Bradley Davis
+ */
+public class BootReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()))
+            ExportJobService.scheduleJobs(context.getApplicationContext());
+    }
+}
@@ -0,0 +1,255 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class which answers contact tracing queries over the messages in the retention window.
+ * Messages are held in one array sorted by time, so a time window is found with two binary searches.
+ * Each phone number has a posting list of positions in that array, in time order, so the visits of a single number
+ * are found without looking at anyone else's. The index is immutable once built.
+ *
+ * @author Bradley Davis
+ */
+public class ContactTraceIndex {
+    public static final long DEFAULT_VISIT_MILLIS = 60 * 60 * 1000L;
+    static final String TRACE_PREFIX = "trace-";
+    static final String TRACE_EXT = ".csv";
+    private static final int[] NO_POSTINGS = new int[0];
+
+    private static final Comparator<SingleMessage> TIME_ORDER = new Comparator<SingleMessage>() {
+        @Override
+        public int compare(SingleMessage a, SingleMessage b) {
+            if (a.getTimestamp() != b.getTimestamp())
+                return a.getTimestamp() < b.getTimestamp() ? -1 : 1;
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    private final SingleMessage[] messages;
+    private final long[] timestamps;
+    private final String[] numberKeys;
+    private final Map<String, int[]> postings;
+
+    /**
+     * Constructor for the index.
+     *
+     * @param messages the messages to index, in any order.
+     */
+    public ContactTraceIndex(Collection<SingleMessage> messages) {
+        this.messages = messages.toArray(new SingleMessage[messages.size()]);
+        Arrays.sort(this.messages, TIME_ORDER);
+        this.timestamps = new long[this.messages.length];
+        this.numberKeys = new String[this.messages.length];
+        for (int i = 0; i < this.messages.length; i++) {
+            timestamps[i] = this.messages[i].getTimestamp();
+            numberKeys[i] = NumberKey.of(this.messages[i].getPhoneNumber());
+        }
+        this.postings = buildPostings(numberKeys);
+    }
+
+    /**
+     * Method to build the posting list of every number.
+     *
+     * @param keys the number key of every message, in time order.
+     * @return the positions of each number's messages, keyed by NumberKey.of.
+     */
+    private static Map<String, int[]> buildPostings(String[] keys) {
+        //count first so that every posting list is allocated once at its final size.
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (int i = 0; i < keys.length; i++) {
+            int[] count = counts.get(keys[i]);
+            if (count == null)
+                counts.put(keys[i], count = new int[1]);
+            count[0]++;
+        }
+
+        Map<String, int[]> postings = new HashMap<String, int[]>(counts.size() * 2);
+        for (Map.Entry<String, int[]> count : counts.entrySet()) {
+            postings.put(count.getKey(), new int[count.getValue()[0]]);
+            count.getValue()[0] = 0;
+        }
+        for (int i = 0; i < keys.length; i++)
+            postings.get(keys[i])[counts.get(keys[i])[0]++] = i;
+        return postings;
+    }
+
+    /**
+     * Method to get the number of messages in the index.
+     *
+     * @return the number of messages.
+     */
+    public int size() {
+        return messages.length;
+    }
+
+    /**
+     * Method to find every message within a time window.
+     *
+     * @param from the start of the window (epoch millis, inclusive).
+     * @param to the end of the window (epoch millis, exclusive).
+     * @return the matching messages, oldest first.
+     */
+    public List<SingleMessage> findBetween(long from, long to) {
+        int start = lowerBound(from);
+        int end = lowerBound(to);
+        if (end <= start)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(messages).subList(start, end));
+    }
+
+    /**
+     * Method to find the messages from a phone number within a time window.
+     *
+     * @param number the phone number in any format.
+     * @param from the start of the window (epoch millis, inclusive).
+     * @param to the end of the window (epoch millis, exclusive).
+     * @return the matching messages, oldest first.
+     */
+    public List<SingleMessage> findByNumber(String number, long from, long to) {
+        int[] positions = getPostings(number);
+        List<SingleMessage> found = new ArrayList<SingleMessage>();
+        for (int i = firstPostingFrom(positions, from); i < positions.length && timestamps[positions[i]] < to; i++)
+            found.add(messages[positions[i]]);
+        return found;
+    }
+
+    /**
+     * Method to find everyone whose visit overlapped a visit of a phone number.
+     * Each message is treated as the start of a visit lasting visitMillis, so two visits overlap when they
+     * start less than visitMillis apart.
+     *
+     * @param number the phone number of the case in any format.
+     * @param from the start of the window the case's visits are taken from (epoch millis, inclusive).
+     * @param to the end of the window the case's visits are taken from (epoch millis, exclusive).
+     * @param visitMillis how long a single visit is assumed to last.
+     * @return the first overlapping message of every other number, so each contact is reported once, oldest first.
+     */
+    public List<SingleMessage> findOverlapping(String number, long from, long to, long visitMillis) {
+        String caseKey = NumberKey.of(number);
+        int[] positions = getPostings(number);
+        List<SingleMessage> found = new ArrayList<SingleMessage>();
+        Set<String> reported = new HashSet<String>();
+        reported.add(caseKey);
+
+        //the case's visits are in time order, so their windows are too. Each window is only scanned from where
+        //the last one ended so that overlapping windows do not scan a message twice.
+        int scanned = 0;
+        for (int i = firstPostingFrom(positions, from); i < positions.length; i++) {
+            long visit = timestamps[positions[i]];
+            if (visit >= to)
+                break;
+
+            int start = Math.max(scanned, lowerBound(visit - visitMillis + 1));
+            int end = lowerBound(visit + visitMillis);
+            for (int j = start; j < end; j++) {
+                if (reported.add(numberKeys[j]))
+                    found.add(messages[j]);
+            }
+            scanned = Math.max(scanned, end);
+        }
+        return found;
+    }
+
+    /**
+     * Method to write a set of results as CSV, in the same layout as the daily segments.
+     *
+     * @param results the messages to write.
+     * @param out the stream to write to. It is flushed but left open.
+     * @param deviceId the id of the device the messages were exported from.
+     * @throws IOException if the results could not be written.
+     */
+    public static void writeCsv(List<SingleMessage> results, OutputStream out, String deviceId) throws IOException {
+        CsvRecordWriter writer = new CsvRecordWriter(out);
+        for (SingleMessage message : results)
+            writer.writeMessage(message, deviceId);
+        writer.flush();
+    }
+
+    /**
+     * Method to get the name a set of results is written under.
+     * The name starts with the time of the oldest result, so retention can expire the file along with that message
+     * without opening it. The time it was written is added so that one trace does not replace another.
+     *
+     * @param results the messages to write, oldest first. There must be at least one.
+     * @param writtenMillis the time the results are written (epoch millis).
+     * @return the file name.
+     */
+    static String getTraceFileName(List<SingleMessage> results, long writtenMillis) {
+        return TRACE_PREFIX + results.get(0).getTimestamp() + "-" + writtenMillis + TRACE_EXT;
+    }
+
+    /**
+     * Method to get the time of the oldest result held in a file of results.
+     *
+     * @param fileName the name of the file.
+     * @return the time of the oldest result (epoch millis), or -1 if the file does not hold results.
+     */
+    static long getTraceOldest(String fileName) {
+        if (!fileName.startsWith(TRACE_PREFIX) || !fileName.endsWith(TRACE_EXT))
+            return -1;
+        int end = fileName.indexOf('-', TRACE_PREFIX.length());
+        if (end < 0)
+            return -1;
+        try {
+            return Long.parseLong(fileName.substring(TRACE_PREFIX.length(), end));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private int[] getPostings(String number) {
+        int[] positions = postings.get(NumberKey.of(number));
+        return positions == null ? NO_POSTINGS : positions;
+    }
+
+    /**
+     * Method to find the first message at or after a time.
+     *
+     * @param timestamp the time (epoch millis).
+     * @return the position of the first message at or after the time, or the size of the index if there is none.
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = timestamps.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Method to find the first entry of a posting list at or after a time.
+     *
+     * @param positions the posting list.
+     * @param timestamp the time (epoch millis).
+     * @return the index into the posting list, or its length if there is none.
+     */
+    private int firstPostingFrom(int[] positions, long timestamp) {
+        int low = 0;
+        int high = positions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[positions[middle]] < timestamp)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
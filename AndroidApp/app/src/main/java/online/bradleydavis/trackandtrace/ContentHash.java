@@ -0,0 +1,62 @@
+package online.bradleydavis.trackandtrace;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Class which calculates the content hash stamped on every exported record.
+ * The hash covers the phone number, the exact time and the body, so the same message exported twice - from one
+ * device or from several - has the same hash even though its _id differs between handsets.
+ * It is the first 64 bits of a SHA-256 digest in hex, and each thread reuses its own digest.
+ *
+ * @author Bradley Davis
+ */
+final class ContentHash {
+    private static final int HASH_BYTES = 8;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+    };
+
+    private ContentHash() {
+    }
+
+    /**
+     * Method to calculate the content hash of a message.
+     *
+     * @param phoneNumber the phone number the message came from, may be null.
+     * @param timestamp the time of the message (epoch millis).
+     * @param body the body of the message, may be null.
+     * @return the hash as 16 hex digits.
+     */
+    static String of(String phoneNumber, long timestamp, String body) {
+        MessageDigest messageDigest = digest.get();
+        messageDigest.reset();
+        //fields are separated by a character which can not appear in a number, so no two messages share an input.
+        if (phoneNumber != null)
+            messageDigest.update(phoneNumber.getBytes(StandardCharsets.UTF_8));
+        messageDigest.update((byte) 0);
+        messageDigest.update(Long.toString(timestamp).getBytes(StandardCharsets.US_ASCII));
+        messageDigest.update((byte) 0);
+        if (body != null)
+            messageDigest.update(body.getBytes(StandardCharsets.UTF_8));
+
+        byte[] hash = messageDigest.digest();
+        char[] chars = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
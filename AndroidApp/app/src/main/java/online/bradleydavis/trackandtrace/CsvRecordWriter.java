@@ -0,0 +1,128 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class which streams records to an output as RFC 4180 CSV in UTF-8.
+ * Fields containing commas, quotes or line breaks are quoted rather than altered, so message content is kept intact.
+ * A single record buffer is reused for every record, so writing a record allocates nothing itself.
+ *
+ * @author Bradley Davis
+ */
+public class CsvRecordWriter implements Closeable, Flushable {
+    private static final String RECORD_TERMINATOR = "\r\n";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Writer out;
+    private final StringBuilder record = new StringBuilder(256);
+    private char[] chars = new char[256];
+    private boolean firstField = true;
+
+    /**
+     * Constructor for the writer.
+     *
+     * @param outputStream the stream to write to. It is closed when this writer is closed.
+     */
+    public CsvRecordWriter(OutputStream outputStream) {
+        this.out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Method to add a field to the current record.
+     *
+     * @param value the value of the field. Null is written as an empty field.
+     * @return this writer.
+     */
+    public CsvRecordWriter field(CharSequence value) {
+        if (!firstField)
+            record.append(',');
+        firstField = false;
+        appendField(record, value);
+        return this;
+    }
+
+    /**
+     * Method to finish the current record and write it to the output.
+     *
+     * @throws IOException if the record could not be written.
+     */
+    public void endRecord() throws IOException {
+        record.append(RECORD_TERMINATOR);
+        int length = record.length();
+        if (chars.length < length)
+            chars = new char[Math.max(length, chars.length * 2)];
+        record.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        record.setLength(0);
+        firstField = true;
+    }
+
+    /**
+     * Method to write a message as a record of: body, phone number, time (HH:mm), date (dd/MM/yyyy),
+     * time (epoch millis), device id, content hash.
+     * The first four fields are the original layout, so older tools can ignore the rest.
+     *
+     * @param message the message to write.
+     * @param deviceId the id of the device the message was exported from.
+     * @throws IOException if the record could not be written.
+     */
+    public void writeMessage(SingleMessage message, String deviceId) throws IOException {
+        field(message.getMessageContent())
+                .field(message.getPhoneNumber())
+                .field(message.getTime())
+                .field(message.getDate())
+                .field(Long.toString(message.getTimestamp()))
+                .field(deviceId)
+                .field(message.getContentHash())
+                .endRecord();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Method to append a single field to a record, quoting it if it needs to be.
+     *
+     * @param builder the record being built.
+     * @param value the value of the field. Null is written as an empty field.
+     */
+    public static void appendField(StringBuilder builder, CharSequence value) {
+        if (value == null)
+            return;
+
+        int length = value.length();
+        boolean needsQuotes = false;
+        for (int i = 0; i < length && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!needsQuotes) {
+            builder.append(value);
+            return;
+        }
+
+        builder.append('"');
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                builder.append('"');
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+}
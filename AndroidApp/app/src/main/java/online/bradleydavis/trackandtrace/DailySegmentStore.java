@@ -0,0 +1,352 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class which stores exported text messages as one append-only CSV segment per day, written as RFC 4180 CSV in UTF-8.
+ * Every record carries the id of the device and a hash of its content, so exports from several phones can be merged.
+ * Each segment has a small index file listing the ids it contains so that messages are never written twice, along with
+ * the length of the segment each time it was closed so that an interrupted export can be cut back cleanly.
+ * Retention is handled by dropping whole segments rather than deleting one file per message.
+ *
+ * @author Bradley Davis
+ */
+public class DailySegmentStore {
+    public static final String SEGMENT_PREFIX = "messages-";
+    public static final String SEGMENT_EXT = ".csv";
+    public static final String INDEX_EXT = ".idx";
+    private static final String DAY_PATTERN = "yyyy-MM-dd";
+
+    private final File directory;
+    private final String deviceId;
+
+    /**
+     * Constructor for the store.
+     *
+     * @param directory the directory the segments are kept in.
+     * @param deviceId the id stamped on every record written.
+     */
+    public DailySegmentStore(File directory, String deviceId) {
+        this.directory = directory;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Method to start appending messages to the store.
+     * The returned appender must be closed to flush its data to disk.
+     *
+     * @return an appender for this store.
+     */
+    public Appender openAppender() {
+        return new Appender();
+    }
+
+    /**
+     * Method to delete every segment whose day ended before the cutoff.
+     *
+     * @param cutoffMillis the oldest time (epoch millis) which must be kept.
+     * @return the segment files which were deleted.
+     */
+    public List<File> deleteBefore(long cutoffMillis) {
+        List<File> deleted = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return deleted;
+
+        SimpleDateFormat dayFormat = new SimpleDateFormat(DAY_PATTERN, Locale.ENGLISH);
+        Calendar calendar = Calendar.getInstance();
+        for (File file : files) {
+            String day = getSegmentDay(file.getName());
+            if (day == null)
+                continue;
+
+            try {
+                calendar.setTime(dayFormat.parse(day));
+            }
+            catch (ParseException e) {
+                continue;
+            }
+            calendar.add(Calendar.DATE, 1);
+
+            //only drop the segment once every message in it has expired.
+            if (calendar.getTimeInMillis() <= cutoffMillis) {
+                File index = new File(directory, SEGMENT_PREFIX + day + INDEX_EXT);
+                if (file.delete())
+                    deleted.add(file);
+                index.delete();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Method to list the segments in a directory, oldest day first.
+     *
+     * @param directory the directory the segments are kept in.
+     * @return the segment files.
+     */
+    public static List<File> listSegments(File directory) {
+        List<File> segments = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return segments;
+
+        for (File file : files) {
+            if (getSegmentDay(file.getName()) != null)
+                segments.add(file);
+        }
+        //segment names contain the day as yyyy-MM-dd, so name order is day order.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Method to get the day that a segment file belongs to.
+     *
+     * @param fileName the name of the file.
+     * @return the day in yyyy-MM-dd form or null if the file is not a segment.
+     */
+    public static String getSegmentDay(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_EXT))
+            return null;
+        return fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_EXT.length());
+    }
+
+    /**
+     * Class which appends messages to the store through buffered writers, one per segment touched.
+     */
+    public class Appender {
+        private final Map<String, Segment> openSegments = new HashMap<String, Segment>();
+        private final SimpleDateFormat dayFormat = new SimpleDateFormat(DAY_PATTERN, Locale.ENGLISH);
+        private final Calendar calendar = Calendar.getInstance();
+        private long currentDayStart = Long.MAX_VALUE;
+        private long currentDayEnd = Long.MIN_VALUE;
+        private String currentDay;
+
+        private Appender() {
+        }
+
+        /**
+         * Method to append a message to the segment for its day.
+         *
+         * @param message the message to append.
+         * @return
+         * 1 - Message already exported
+         * 0 - Message appended without issue
+         * -1 - There was an issue in writing the message
+         */
+        public int append(SingleMessage message) {
+            try {
+                Segment segment = getSegment(getDay(message.getTimestamp()));
+                if (!segment.ids.add(message.getId()))
+                    return 1;
+
+                segment.data.writeMessage(message, deviceId);
+                segment.index.write(Long.toString(message.getId()));
+                segment.index.write('\n');
+                segment.appended = true;
+            }
+            catch (IOException e) {
+                return -1;
+            }
+            return 0;
+        }
+
+        /**
+         * Method to flush and close every segment written to.
+         *
+         * @return the segment files which had messages appended to them.
+         * @throws IOException if any segment could not be flushed.
+         */
+        public List<File> close() throws IOException {
+            List<File> touched = new ArrayList<File>();
+            IOException failure = null;
+            for (Segment segment : openSegments.values()) {
+                try {
+                    segment.close();
+                }
+                catch (IOException e) {
+                    failure = e;
+                }
+                if (segment.appended)
+                    touched.add(segment.file);
+            }
+            openSegments.clear();
+            if (failure != null)
+                throw failure;
+            return touched;
+        }
+
+        /**
+         * Method to get the day a timestamp falls on.
+         * Messages arrive mostly in date order so the bounds of the last day are cached.
+         *
+         * @param timestamp the time (epoch millis).
+         * @return the day in yyyy-MM-dd form.
+         */
+        private String getDay(long timestamp) {
+            if (timestamp < currentDayStart || timestamp >= currentDayEnd) {
+                calendar.setTimeInMillis(timestamp);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                currentDayStart = calendar.getTimeInMillis();
+                currentDay = dayFormat.format(calendar.getTime());
+                calendar.add(Calendar.DATE, 1);
+                currentDayEnd = calendar.getTimeInMillis();
+            }
+            return currentDay;
+        }
+
+        /**
+         * Method to get an open segment for a day, opening it and loading its index if necessary.
+         *
+         * @param day the day in yyyy-MM-dd form.
+         * @return the open segment.
+         * @throws IOException if the segment could not be opened.
+         */
+        private Segment getSegment(String day) throws IOException {
+            Segment segment = openSegments.get(day);
+            if (segment == null) {
+                segment = new Segment(new File(directory, SEGMENT_PREFIX + day + SEGMENT_EXT),
+                        new File(directory, SEGMENT_PREFIX + day + INDEX_EXT));
+                openSegments.put(day, segment);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * Class holding the writers and known ids of a single open segment.
+     * The data and index are buffered separately, so on closing the data is flushed first and the index then records
+     * how long the data is. If the process dies part way through, whatever was written after the last recorded length
+     * is cut from both files when the segment is next opened, so the two always agree and nothing is written twice.
+     */
+    private static class Segment {
+        private static final char LENGTH_MARKER = '#';
+
+        private final File file;
+        private final Set<Long> ids = new HashSet<Long>();
+        private final CsvRecordWriter data;
+        private final BufferedWriter index;
+        private boolean appended = false;
+
+        private Segment(File file, File indexFile) throws IOException {
+            this.file = file;
+            readIndex(indexFile);
+            this.data = new CsvRecordWriter(new FileOutputStream(file, true));
+            this.index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true),
+                    StandardCharsets.UTF_8));
+        }
+
+        private void close() throws IOException {
+            try {
+                data.flush();
+                if (appended) {
+                    index.write(LENGTH_MARKER);
+                    index.write(Long.toString(file.length()));
+                    index.write('\n');
+                }
+                data.close();
+            }
+            finally {
+                index.close();
+            }
+        }
+
+        /**
+         * Method to read the ids already stored in a segment, cutting off anything written after the last time the
+         * segment was closed.
+         * Indexes written before lengths were recorded have none, and are trusted as they are.
+         *
+         * @param indexFile the index file of the segment.
+         * @throws IOException if the index exists but could not be read or cut.
+         */
+        private void readIndex(File indexFile) throws IOException {
+            BufferedReader reader;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                        StandardCharsets.UTF_8));
+            }
+            catch (FileNotFoundException e) {
+                return;
+            }
+
+            //the index is only digits, # and line breaks, so characters and bytes are the same.
+            long indexLength = indexFile.length();
+            long offset = 0;
+            long closedOffset = -1;
+            long closedLength = -1;
+            List<Long> unclosed = new ArrayList<Long>();
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    offset += line.length() + 1;
+                    //a partially written last line from an interrupted export - ignore it.
+                    if (offset > indexLength)
+                        break;
+
+                    try {
+                        if (!line.isEmpty() && line.charAt(0) == LENGTH_MARKER) {
+                            closedLength = Long.parseLong(line.substring(1));
+                            closedOffset = offset;
+                            ids.addAll(unclosed);
+                            unclosed.clear();
+                        }
+                        else
+                            unclosed.add(Long.parseLong(line.trim()));
+                    }
+                    catch (NumberFormatException e) {
+                        //not written by this store - ignore it.
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+
+            if (closedLength < 0) {
+                ids.addAll(unclosed);
+                return;
+            }
+            if (unclosed.isEmpty() && file.length() <= closedLength && indexLength == closedOffset)
+                return;
+
+            if (file.length() > closedLength)
+                truncate(file, closedLength);
+            truncate(indexFile, closedOffset);
+        }
+
+        private static void truncate(File file, long length) throws IOException {
+            RandomAccessFile resized = new RandomAccessFile(file, "rw");
+            try {
+                resized.setLength(length);
+            }
+            finally {
+                resized.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+/**
+ * Class which provides the id stamped on every record this device exports.
+ * The id is generated the first time it is needed and kept for the life of the installation, so exports from
+ * several phones at one site can be told apart when they are merged.
+ *
+ * @author Bradley Davis
+ */
+public class DeviceIdentity {
+    private static final String PREFERENCES_NAME = "TrackAndTraceDevice";
+    private static final String KEY_DEVICE_ID = "deviceId";
+    private static String deviceId;
+
+    /**
+     * Method to get the id of this device, creating it if necessary.
+     *
+     * @param context Any context within the application.
+     * @return the device id.
+     */
+    public static synchronized String get(Context context) {
+        if (deviceId == null) {
+            SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            deviceId = preferences.getString(KEY_DEVICE_ID, null);
+            if (deviceId == null) {
+                deviceId = UUID.randomUUID().toString();
+                //committed rather than applied so that the id can never be handed out twice.
+                preferences.edit().putString(KEY_DEVICE_ID, deviceId).commit();
+            }
+        }
+        return deviceId;
+    }
+}
@@ -0,0 +1,97 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Class which persists the settings made on the diagnostics screen, along with which export storage last held the
+ * exports so that a change of storage can be finished on the next start.
+ * The settings are applied once per process by whichever of the activity or the storage manager starts first.
+ *
+ * @author Bradley Davis
+ */
+public class DiagnosticSettings {
+    private static final String PREFERENCES_NAME = "TrackAndTraceDiagnostics";
+    private static final String KEY_METRICS_ENABLED = "metricsEnabled";
+    private static final String KEY_MEDIA_STORE = "mediaStore";
+    private static final String KEY_EXPORT_STORAGE = "exportStorage";
+    private static boolean applied = false;
+
+    /**
+     * Method to turn metrics collection on or off as it was last set, the first time it is called in this process.
+     * Reading this one preference is cheap, so it is done before anything else so that startup can be measured.
+     *
+     * @param context Any context within the application.
+     */
+    public static synchronized void apply(Context context) {
+        if (applied)
+            return;
+        Metrics.setEnabled(getPreferences(context).getBoolean(KEY_METRICS_ENABLED, false));
+        applied = true;
+    }
+
+    /**
+     * Method to turn metrics collection on or off and remember it across restarts.
+     *
+     * @param context Any context within the application.
+     * @param enabled whether or not to collect metrics.
+     */
+    public static synchronized void setMetricsEnabled(Context context, boolean enabled) {
+        Metrics.setEnabled(enabled);
+        getPreferences(context).edit()
+                .putBoolean(KEY_METRICS_ENABLED, enabled)
+                .apply();
+        applied = true;
+    }
+
+    /**
+     * Method to check whether or not exports should be published through MediaStore rather than written to the
+     * shared folder. This is the default from Android 10, where the shared folder cannot be written to directly.
+     *
+     * @param context Any context within the application.
+     * @return whether or not to use MediaStore.
+     */
+    public static boolean usesMediaStore(Context context) {
+        return getPreferences(context).getBoolean(KEY_MEDIA_STORE, Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+    }
+
+    /**
+     * Method to choose whether or not exports are published through MediaStore. This applies from the next start.
+     *
+     * @param context Any context within the application.
+     * @param mediaStore whether or not to use MediaStore.
+     */
+    public static void setMediaStore(Context context, boolean mediaStore) {
+        getPreferences(context).edit()
+                .putBoolean(KEY_MEDIA_STORE, mediaStore)
+                .apply();
+    }
+
+    /**
+     * Method to get the name of the export storage whose folder holds the exports.
+     * Versions before the storage could be chosen always wrote to the shared folder.
+     *
+     * @param context Any context within the application.
+     * @return the name of the storage.
+     */
+    public static String getExportStorageName(Context context) {
+        return getPreferences(context).getString(KEY_EXPORT_STORAGE, FileExportStorage.NAME);
+    }
+
+    /**
+     * Method to record which export storage's folder holds the exports, once any other has been cleared.
+     *
+     * @param context Any context within the application.
+     * @param name the name of the storage.
+     */
+    public static void setExportStorageName(Context context, String name) {
+        getPreferences(context).edit()
+                .putString(KEY_EXPORT_STORAGE, name)
+                .apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
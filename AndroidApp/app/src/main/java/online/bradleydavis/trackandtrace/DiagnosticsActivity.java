@@ -0,0 +1,173 @@
+package online.bradleydavis.trackandtrace;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.Switch;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Activity which shows the metrics collected by the application and lets them be turned on, reset or saved to a file.
+ * Whether or not metrics are collected is remembered across restarts through DiagnosticSettings.
+ * It also turns on the export server, which serves the export to the desktop collector through adb forward and shows
+ * the token the collector must send, and chooses the export storage so that the file and MediaStore backends can be
+ * compared.
+ *
+ * @author Bradley Davis
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+    TextView metricsText;
+    Switch enabledSwitch;
+    Switch streamSwitch;
+    Switch mediaStoreSwitch;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        metricsText = (TextView) findViewById(R.id.metrics);
+        enabledSwitch = (Switch) findViewById(R.id.metricsEnabled);
+        enabledSwitch.setChecked(Metrics.isEnabled());
+        enabledSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                DiagnosticSettings.setMetricsEnabled(DiagnosticsActivity.this, isChecked);
+                showMetrics();
+            }
+        });
+
+        //the server is not remembered across restarts, so the port is only open while it is wanted.
+        streamSwitch = (Switch) findViewById(R.id.streamEnabled);
+        streamSwitch.setChecked(StorageManager.getInstance(this).IsStreamServerRunning());
+        streamSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                boolean running = StorageManager.getInstance(DiagnosticsActivity.this).SetStreamServerEnabled(isChecked);
+                if (running != isChecked) {
+                    buttonView.setChecked(running);
+                    Toast.makeText(DiagnosticsActivity.this, "Could not start the export server", Toast.LENGTH_SHORT).show();
+                }
+                //the token changes each time the server starts.
+                showMetrics();
+            }
+        });
+
+        //the storage is chosen when the storage manager starts, so a change applies from the next start.
+        mediaStoreSwitch = (Switch) findViewById(R.id.mediaStoreEnabled);
+        mediaStoreSwitch.setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+        mediaStoreSwitch.setChecked(DiagnosticSettings.usesMediaStore(this));
+        mediaStoreSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                DiagnosticSettings.setMediaStore(DiagnosticsActivity.this, isChecked);
+                Toast.makeText(DiagnosticsActivity.this, "Restart the app to switch export storage", Toast.LENGTH_SHORT).show();
+            }
+        });
+
+        ((Button) findViewById(R.id.refreshMetrics)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                showMetrics();
+            }
+        });
+        ((Button) findViewById(R.id.resetMetrics)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Metrics.reset();
+                showMetrics();
+            }
+        });
+        ((Button) findViewById(R.id.saveMetrics)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                saveMetrics();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showMetrics();
+    }
+
+    /**
+     * Method to show the current metrics along with the last retention run and the export server token.
+     * The token is only shown on screen and never saved with the metrics, as the export folder is readable by other apps.
+     */
+    private void showMetrics() {
+        String token = StorageManager.getInstance(this).GetStreamServerToken();
+        metricsText.setText(describe() + "export server token: " + (token == null ? "not running" : token) + "\n");
+    }
+
+    /**
+     * Method to describe the current metrics along with the last retention run.
+     *
+     * @return the description.
+     */
+    private String describe() {
+        StorageManager storageManager = StorageManager.getInstance(this);
+        RetentionEngine.Result retention = storageManager.GetLastRetentionResult();
+        return Metrics.dump() + "export storage: " + storageManager.GetExportStorageName() + "\n" +
+                "last retention: " + (retention == null ? "not run yet" : retention.toString()) + "\n";
+    }
+
+    /**
+     * Method to write the current metrics to a file in the export folder so that they can be pulled off the device.
+     * The file is written on a background thread.
+     */
+    private void saveMetrics() {
+        final String dump = describe();
+        final StorageManager storageManager = StorageManager.getInstance(this);
+        final File file = new File(storageManager.GetExportDirectory(), "diagnostics-" +
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH).format(new Date()) + ".txt");
+        final Context applicationContext = getApplicationContext();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean saved = false;
+                try {
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(dump.getBytes(StandardCharsets.UTF_8));
+                    }
+                    finally {
+                        out.close();
+                    }
+                    storageManager.PublishFiles(Collections.singletonList(file));
+                    saved = true;
+                }
+                catch (IOException e) {
+                    Log.d("TrackAndTrace Diagnostics", String.valueOf(e.getMessage()));
+                }
+
+                final String result = saved ? "Saved " + file.getName() : "Could not save diagnostics";
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(applicationContext, result, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "TrackAndTrace diagnostics").start();
+    }
+}
@@ -0,0 +1,898 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Class which packs every daily segment into a single zip bundle, so the retention window can be pulled off the
+ * device in one sequential read rather than one transfer per file.
+ * A manifest holding the record count, CRC32 and SHA-256 of each segment is written as the last entry of the bundle
+ * and next to it, so that a truncated transfer can be detected.
+ * The bundle is only rebuilt when a segment has changed. Segments whose size and modified time match the manifest
+ * keep their entry, and their compressed data is copied from the previous bundle rather than being counted, hashed and
+ * compressed again, so a rebuild after a message arrives only compresses the segment it was appended to.
+ * Only the manifest inside the bundle is trusted for this, as it is always replaced together with the entries it
+ * describes. The copy next to the bundle is for the collector.
+ * Entries are written without ZIP64 records, which limits a bundle to 4GB and 65,535 entries. A bundle which would be
+ * larger is built in full by ZipOutputStream instead, which adds the ZIP64 records where they are needed.
+ *
+ * @author Bradley Davis
+ */
+public class ExportBundleWriter {
+    public static final String BUNDLE_NAME = "export-bundle.zip";
+    public static final String MANIFEST_NAME = "export-manifest.csv";
+    public static final String MANIFEST_ENTRY = "manifest.csv";
+    private static final String[] MANIFEST_HEADER = {"segment", "bytes", "modified", "records", "crc32", "sha256"};
+    private static final String TEMP_EXT = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //far larger than the manifest of any retention window, so a damaged size is not allocated.
+    private static final int MAX_MANIFEST_BYTES = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    //zip file format, all values little endian.
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int VERSION = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int METHOD_DEFLATED = 8;
+    //sizes, offsets and counts which fill their field mark a ZIP64 record, so one less is the most that can be written.
+    private static final long ZIP_LIMIT = 0xfffffffeL;
+    private static final int MAX_ENTRIES = 0xfffe;
+
+    private final File directory;
+    private final long zipLimit;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Map<String, Entry> manifest;
+
+    /**
+     * Class describing a single segment held in the bundle.
+     */
+    public static class Entry {
+        public final String segment;
+        public final long bytes;
+        public final long modified;
+        public final int records;
+        public final long crc32;
+        public final String sha256;
+
+        Entry(String segment, long bytes, long modified, int records, long crc32, String sha256) {
+            this.segment = segment;
+            this.bytes = bytes;
+            this.modified = modified;
+            this.records = records;
+            this.crc32 = crc32;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * Method to check whether or not a segment is unchanged since this entry was made.
+         *
+         * @param file the segment file.
+         * @return whether or not the file has the size and modified time recorded.
+         */
+        private boolean matches(File file) {
+            return file.length() == bytes && file.lastModified() == modified;
+        }
+
+        private Entry withCrc32(long crc32) {
+            return new Entry(segment, bytes, modified, records, crc32, sha256);
+        }
+    }
+
+    /**
+     * Constructor for the writer.
+     *
+     * @param directory the directory the segments are kept in. The bundle and manifest are written here too.
+     */
+    public ExportBundleWriter(File directory) {
+        this(directory, ZIP_LIMIT);
+    }
+
+    /**
+     * Constructor for a writer with a lower size limit, so that building a large bundle can be tested.
+     *
+     * @param directory the directory the segments are kept in. The bundle and manifest are written here too.
+     * @param zipLimit the largest size or offset to write without ZIP64 records.
+     */
+    ExportBundleWriter(File directory, long zipLimit) {
+        this.directory = directory;
+        this.zipLimit = zipLimit;
+    }
+
+    /**
+     * Method to rebuild the bundle if any segment has been added, changed or deleted since it was last built.
+     * Unchanged segments have their compressed entry copied across from the previous bundle, so only the segments
+     * which changed are read and compressed again.
+     * The new bundle is written alongside the old one and renamed over it, so a reader never sees a partial bundle.
+     * This performs I/O and must not be called on the UI thread.
+     *
+     * @return the files which were rewritten, empty if the bundle was already up to date.
+     * @throws IOException if the bundle could not be written. The previous bundle is left in place.
+     */
+    public List<File> update() throws IOException {
+        File bundle = new File(directory, BUNDLE_NAME);
+        File manifestFile = new File(directory, MANIFEST_NAME);
+        if (manifest == null)
+            manifest = readBundleManifest(bundle);
+
+        List<File> segments = DailySegmentStore.listSegments(directory);
+        if (bundle.exists() && !isStale(segments)) {
+            if (manifestFile.exists())
+                return Collections.emptyList();
+            //the bundle is up to date but the copy of its manifest has gone, so only that is written again.
+            writeManifestFile(manifestFile, manifest.values());
+            return Collections.singletonList(manifestFile);
+        }
+
+        File bundleTemp = new File(directory, BUNDLE_NAME + TEMP_EXT);
+        Map<String, Entry> built;
+        if (exceedsZipLimits(segments)) {
+            built = writeLargeBundle(segments, bundleTemp);
+        }
+        else {
+            try {
+                built = writeBundle(segments, bundle, bundleTemp);
+            }
+            catch (ZipLimitException e) {
+                //the entries and their headers came to more than the segments themselves.
+                built = writeLargeBundle(segments, bundleTemp);
+            }
+        }
+
+        //the manifest is replaced first. If the bundle then can not be, the collector sees checksums which do not
+        //match the bundle and pulls again, and the next build still goes by the manifest inside the old bundle.
+        writeManifestFile(manifestFile, built.values());
+        if (!bundleTemp.renameTo(bundle))
+            throw new IOException("Could not replace the export bundle");
+        manifest = built;
+        return Arrays.asList(bundle, manifestFile);
+    }
+
+    /**
+     * Method to write a bundle entry by entry, copying the entries of unchanged segments from the previous bundle.
+     *
+     * @param segments the segments to bundle.
+     * @param bundle the previous bundle, which may not exist.
+     * @param bundleTemp the file to write the new bundle to.
+     * @return the manifest of the new bundle.
+     * @throws ZipLimitException if the bundle would need ZIP64 records. Nothing is left in bundleTemp.
+     * @throws IOException if the bundle could not be written. Nothing is left in bundleTemp.
+     */
+    private Map<String, Entry> writeBundle(List<File> segments, File bundle, File bundleTemp) throws IOException {
+        Map<String, Entry> built = new LinkedHashMap<String, Entry>();
+        boolean complete = false;
+        RandomAccessFile previousBundle = bundle.exists() ? new RandomAccessFile(bundle, "r") : null;
+        BundleOutput zip = null;
+        try {
+            Map<String, ZipRecord> previousRecords = previousBundle == null ? new HashMap<String, ZipRecord>() :
+                    readCentralDirectory(previousBundle);
+            zip = new BundleOutput(new FileOutputStream(bundleTemp), zipLimit);
+            for (File segment : segments) {
+                Entry previous = manifest.get(segment.getName());
+                ZipRecord record = previousRecords.get(segment.getName());
+                if (previous != null && previous.matches(segment) && record != null && record.matches(previous)) {
+                    zip.copyEntry(record, previousBundle);
+                    built.put(segment.getName(), previous);
+                }
+                else {
+                    built.put(segment.getName(), writeSegment(zip, segment));
+                }
+            }
+
+            ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+            writeManifest(manifestBytes, built.values());
+            zip.startEntry(MANIFEST_ENTRY, System.currentTimeMillis());
+            zip.write(manifestBytes.toByteArray(), 0, manifestBytes.size());
+            zip.closeEntry();
+            zip.finish();
+            complete = true;
+        }
+        finally {
+            try {
+                if (zip != null)
+                    zip.close();
+                if (previousBundle != null)
+                    previousBundle.close();
+            }
+            finally {
+                if (!complete)
+                    bundleTemp.delete();
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Method to write a bundle in full through ZipOutputStream, which adds ZIP64 records where they are needed.
+     * Every segment is compressed again, so this is only used for a bundle too large to write entry by entry.
+     *
+     * @param segments the segments to bundle.
+     * @param bundleTemp the file to write the new bundle to.
+     * @return the manifest of the new bundle.
+     * @throws IOException if the bundle could not be written. Nothing is left in bundleTemp.
+     */
+    private Map<String, Entry> writeLargeBundle(List<File> segments, File bundleTemp) throws IOException {
+        Map<String, Entry> built = new LinkedHashMap<String, Entry>();
+        boolean complete = false;
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(bundleTemp),
+                BUFFER_SIZE));
+        try {
+            zip.setLevel(Deflater.BEST_SPEED);
+            for (File segment : segments) {
+                ZipEntry entry = new ZipEntry(segment.getName());
+                entry.setTime(segment.lastModified());
+                zip.putNextEntry(entry);
+                Entry copied = copySegment(segment, zip);
+                zip.closeEntry();
+                built.put(segment.getName(), copied.withCrc32(entry.getCrc()));
+            }
+
+            ZipEntry manifestEntry = new ZipEntry(MANIFEST_ENTRY);
+            manifestEntry.setTime(System.currentTimeMillis());
+            zip.putNextEntry(manifestEntry);
+            writeManifest(zip, built.values());
+            zip.closeEntry();
+            zip.finish();
+            complete = true;
+        }
+        finally {
+            try {
+                zip.close();
+            }
+            finally {
+                if (!complete)
+                    bundleTemp.delete();
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Method to check whether or not a bundle of the segments may need ZIP64 records.
+     * Compressing never makes a segment much larger, so the total size of the segments is a close guide.
+     *
+     * @param segments the segments to bundle.
+     * @return whether or not the bundle should be written by writeLargeBundle.
+     */
+    private boolean exceedsZipLimits(List<File> segments) {
+        //one more entry for the manifest.
+        if (segments.size() + 1 > MAX_ENTRIES)
+            return true;
+        long total = 0;
+        for (File segment : segments)
+            total += segment.length();
+        return total > zipLimit;
+    }
+
+    /**
+     * Method to get the manifest of the bundle as it was last built.
+     *
+     * @return the manifest entries in segment order.
+     */
+    public List<Entry> getManifest() {
+        if (manifest == null)
+            manifest = readBundleManifest(new File(directory, BUNDLE_NAME));
+        return new ArrayList<Entry>(manifest.values());
+    }
+
+    /**
+     * Method to write the copy of the manifest kept next to the bundle, replacing any older copy in one step.
+     *
+     * @param manifestFile the manifest file.
+     * @param entries the entries to write.
+     * @throws IOException if the manifest could not be written or replaced.
+     */
+    private void writeManifestFile(File manifestFile, Collection<Entry> entries) throws IOException {
+        File manifestTemp = new File(directory, MANIFEST_NAME + TEMP_EXT);
+        OutputStream manifestOut = new FileOutputStream(manifestTemp);
+        try {
+            writeManifest(manifestOut, entries);
+        }
+        finally {
+            manifestOut.close();
+        }
+        if (!manifestTemp.renameTo(manifestFile))
+            throw new IOException("Could not replace the export manifest");
+    }
+
+    /**
+     * Method to check whether or not the segments differ from the manifest.
+     *
+     * @param segments the segments currently in the directory.
+     * @return whether or not the bundle needs to be rebuilt.
+     */
+    private boolean isStale(List<File> segments) {
+        if (segments.size() != manifest.size())
+            return true;
+        for (File segment : segments) {
+            Entry entry = manifest.get(segment.getName());
+            if (entry == null || !entry.matches(segment))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method to compress a segment into the bundle.
+     *
+     * @param zip the bundle being written.
+     * @param segment the segment file.
+     * @return the manifest entry for the segment.
+     * @throws IOException if the segment could not be read or the bundle written.
+     */
+    private Entry writeSegment(BundleOutput zip, File segment) throws IOException {
+        zip.startEntry(segment.getName(), segment.lastModified());
+        Entry copied = copySegment(segment, zip);
+        return copied.withCrc32(zip.closeEntry());
+    }
+
+    /**
+     * Method to copy a segment into the entry being written.
+     * The records are counted and the SHA-256 calculated during the copy, so each segment is only read once. The
+     * CRC32 is left to the zip stream, which calculates it anyway.
+     *
+     * @param segment the segment file.
+     * @param out the stream the entry is written through.
+     * @return the manifest entry for the segment, without its CRC32.
+     * @throws IOException if the segment could not be read or the bundle written.
+     */
+    private Entry copySegment(File segment, OutputStream out) throws IOException {
+        long bytes = segment.length();
+        long modified = segment.lastModified();
+        MessageDigest digest = newSha256();
+        RecordCounter counter = new RecordCounter();
+        InputStream in = new FileInputStream(segment);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                counter.update(buffer, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return new Entry(segment.getName(), bytes, modified, counter.records, 0, toHex(digest.digest()));
+    }
+
+    /**
+     * Method to find where each entry of a bundle is stored, from the central directory at the end of the file.
+     * Anything which cannot be read is left out, so that its segment is compressed again.
+     *
+     * @param bundle the bundle to read.
+     * @return the entries keyed by name.
+     */
+    private static Map<String, ZipRecord> readCentralDirectory(RandomAccessFile bundle) {
+        Map<String, ZipRecord> records = new HashMap<String, ZipRecord>();
+        try {
+            //the end record is followed by a comment of up to 64KB, which this writer never adds.
+            long length = bundle.length();
+            int tailLength = (int) Math.min(length, END_SIZE + 0xffff);
+            ByteBuffer tail = read(bundle, length - tailLength, tailLength);
+            int end = -1;
+            for (int i = tailLength - END_SIZE; i >= 0 && end == -1; i--) {
+                if (tail.getInt(i) == END_SIGNATURE)
+                    end = i;
+            }
+            if (end == -1)
+                return records;
+
+            int count = tail.getShort(end + 10) & 0xffff;
+            long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+            long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+            //a ZIP64 bundle from writeLargeBundle is always built again in full.
+            if (count > MAX_ENTRIES || directorySize > ZIP_LIMIT || directoryOffset > ZIP_LIMIT ||
+                    directoryOffset + directorySize > length)
+                return records;
+
+            ByteBuffer directory = read(bundle, directoryOffset, (int) directorySize);
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                if (position + CENTRAL_HEADER_SIZE > directory.limit() ||
+                        directory.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                    break;
+                int nameLength = directory.getShort(position + 28) & 0xffff;
+                int extraLength = directory.getShort(position + 30) & 0xffff;
+                int commentLength = directory.getShort(position + 32) & 0xffff;
+                byte[] name = new byte[nameLength];
+                directory.position(position + CENTRAL_HEADER_SIZE);
+                directory.get(name);
+
+                ZipRecord record = new ZipRecord(new String(name, StandardCharsets.UTF_8),
+                        directory.getShort(position + 10) & 0xffff,
+                        directory.getInt(position + 12),
+                        directory.getInt(position + 16) & 0xffffffffL,
+                        directory.getInt(position + 20) & 0xffffffffL,
+                        directory.getInt(position + 24) & 0xffffffffL);
+
+                //the data follows the local header, whose extra field may differ from the central one.
+                //a field which is full holds a ZIP64 marker rather than the value, so the entry is left out.
+                record.headerOffset = directory.getInt(position + 42) & 0xffffffffL;
+                boolean zip64 = record.compressedSize > ZIP_LIMIT || record.size > ZIP_LIMIT ||
+                        record.headerOffset > ZIP_LIMIT;
+                if (!zip64 && record.headerOffset + LOCAL_HEADER_SIZE <= directoryOffset) {
+                    ByteBuffer header = read(bundle, record.headerOffset, LOCAL_HEADER_SIZE);
+                    record.dataOffset = record.headerOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) +
+                            (header.getShort(28) & 0xffff);
+                    if (header.getInt(0) == LOCAL_HEADER_SIGNATURE &&
+                            record.dataOffset + record.compressedSize <= directoryOffset)
+                        records.put(record.name, record);
+                }
+                position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+        }
+        catch (IOException e) {
+            //whatever was read can still be copied.
+        }
+        return records;
+    }
+
+    private static ByteBuffer read(RandomAccessFile file, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        file.seek(offset);
+        file.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Method to write the manifest as CSV. The output is flushed but left open.
+     *
+     * @param out the stream to write to.
+     * @param entries the entries to write.
+     * @throws IOException if the manifest could not be written.
+     */
+    private static void writeManifest(OutputStream out, Collection<Entry> entries) throws IOException {
+        CsvRecordWriter writer = new CsvRecordWriter(out);
+        for (String column : MANIFEST_HEADER)
+            writer.field(column);
+        writer.endRecord();
+        for (Entry entry : entries) {
+            writer.field(entry.segment)
+                    .field(Long.toString(entry.bytes))
+                    .field(Long.toString(entry.modified))
+                    .field(Integer.toString(entry.records))
+                    .field(String.format("%08x", entry.crc32))
+                    .field(entry.sha256)
+                    .endRecord();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Method to read the manifest inside a bundle. It is only trusted if it inflates to the size and CRC32 its
+     * entry records.
+     *
+     * @param bundle the bundle file.
+     * @return the entries keyed by segment name, empty if the bundle has no readable manifest.
+     */
+    private static Map<String, Entry> readBundleManifest(File bundle) {
+        if (!bundle.exists())
+            return new LinkedHashMap<String, Entry>();
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(bundle, "r");
+            try {
+                ZipRecord record = readCentralDirectory(file).get(MANIFEST_ENTRY);
+                if (record == null || record.method != METHOD_DEFLATED || record.size > MAX_MANIFEST_BYTES ||
+                        record.compressedSize > MAX_MANIFEST_BYTES)
+                    return new LinkedHashMap<String, Entry>();
+
+                byte[] compressed = read(file, record.dataOffset, (int) record.compressedSize).array();
+                byte[] manifestBytes = inflate(compressed, (int) record.size);
+                CRC32 crc = new CRC32();
+                crc.update(manifestBytes);
+                if (crc.getValue() != record.crc32)
+                    return new LinkedHashMap<String, Entry>();
+                return readManifest(manifestBytes);
+            }
+            finally {
+                file.close();
+            }
+        }
+        catch (IOException e) {
+            //the bundle will be built again from the segments.
+            return new LinkedHashMap<String, Entry>();
+        }
+    }
+
+    /**
+     * Method to inflate an entry compressed without a zlib header, as zip entries are.
+     *
+     * @param compressed the compressed data.
+     * @param size the size of the data once inflated.
+     * @return the inflated data.
+     * @throws IOException if the data is damaged or is not the size expected.
+     */
+    private static byte[] inflate(byte[] compressed, int size) throws IOException {
+        //without a header the inflater may need one byte past the end of the data.
+        byte[] input = Arrays.copyOf(compressed, compressed.length + 1);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            byte[] inflated = new byte[size];
+            int length = 0;
+            while (length < size) {
+                int read = inflater.inflate(inflated, length, size - length);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("The manifest entry is truncated");
+                length += read;
+            }
+            return inflated;
+        }
+        catch (DataFormatException e) {
+            throw new IOException("The manifest entry is damaged", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Method to read a manifest written by writeManifest.
+     *
+     * @param bytes the manifest.
+     * @return the entries keyed by segment name. Damaged lines are left out.
+     */
+    private static Map<String, Entry> readManifest(byte[] bytes) {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes),
+                StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length != MANIFEST_HEADER.length || DailySegmentStore.getSegmentDay(fields[0]) == null)
+                    continue;
+                try {
+                    entries.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Integer.parseInt(fields[3]), Long.parseLong(fields[4], 16), fields[5]));
+                }
+                catch (NumberFormatException e) {
+                    //a damaged line - the segment will be counted and hashed again.
+                }
+            }
+        }
+        catch (IOException e) {
+            //a byte array can always be read.
+        }
+        return entries;
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Class describing where an entry is stored in a bundle which has already been written.
+     */
+    private static class ZipRecord {
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final long crc32;
+        private final long compressedSize;
+        private final long size;
+        private long headerOffset;
+        private long dataOffset;
+
+        private ZipRecord(String name, int method, int dosTime, long crc32, long compressedSize, long size) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc32 = crc32;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        /**
+         * Method to check whether or not this entry holds the segment described by a manifest entry.
+         *
+         * @param entry the manifest entry.
+         * @return whether or not the entry can be copied into a new bundle as it is.
+         */
+        private boolean matches(Entry entry) {
+            return method == METHOD_DEFLATED && size == entry.bytes && crc32 == entry.crc32;
+        }
+    }
+
+    /**
+     * Exception thrown when a bundle would need ZIP64 records, which BundleOutput does not write.
+     */
+    private static class ZipLimitException extends IOException {
+        private ZipLimitException() {
+            super("The export bundle is too large to write without ZIP64 records");
+        }
+    }
+
+    /**
+     * Class which writes a zip file entry by entry.
+     * Unlike ZipOutputStream, an entry already compressed in another bundle can be copied in without inflating and
+     * deflating it again. It never writes ZIP64 records, so it stops with a ZipLimitException as soon as a size,
+     * offset or entry count would not fit without them.
+     */
+    private static class BundleOutput extends OutputStream {
+        private final OutputStream out;
+        private final long limit;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final byte[] deflated = new byte[BUFFER_SIZE];
+        private final byte[] copyBuffer = new byte[BUFFER_SIZE];
+        private final List<ZipRecord> written = new ArrayList<ZipRecord>();
+        private final CRC32 crc = new CRC32();
+        private long position = 0;
+        private ZipRecord current;
+        private long currentOffset;
+
+        private BundleOutput(OutputStream out, long limit) {
+            this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+            this.limit = limit;
+        }
+
+        /**
+         * Method to start a new compressed entry. The sizes and checksum follow the data, as they are not yet known.
+         *
+         * @param name the name of the entry.
+         * @param modified the modified time of the entry (epoch millis).
+         * @throws IOException if the bundle could not be written.
+         */
+        private void startEntry(String name, long modified) throws IOException {
+            checkEntryCount();
+            currentOffset = position;
+            current = new ZipRecord(name, METHOD_DEFLATED, toDosTime(modified), 0, 0, 0);
+            writeLocalHeader(current, FLAG_DATA_DESCRIPTOR);
+            crc.reset();
+            deflater.reset();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            crc.update(bytes, offset, length);
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput())
+                deflate();
+        }
+
+        /**
+         * Method to finish the entry being written.
+         *
+         * @return the CRC32 of the entry's data.
+         * @throws IOException if the bundle could not be written.
+         */
+        private long closeEntry() throws IOException {
+            deflater.finish();
+            while (!deflater.finished())
+                deflate();
+
+            if (deflater.getBytesRead() > limit)
+                throw new ZipLimitException();
+            ZipRecord record = new ZipRecord(current.name, METHOD_DEFLATED, current.dosTime, crc.getValue(),
+                    deflater.getBytesWritten(), deflater.getBytesRead());
+            record.headerOffset = currentOffset;
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt((int) record.crc32);
+            writeInt((int) record.compressedSize);
+            writeInt((int) record.size);
+            written.add(record);
+            current = null;
+            return record.crc32;
+        }
+
+        /**
+         * Method to copy a compressed entry from another bundle as it is.
+         *
+         * @param record where the entry is stored in the other bundle.
+         * @param from the other bundle.
+         * @throws IOException if the entry could not be copied.
+         */
+        private void copyEntry(ZipRecord record, RandomAccessFile from) throws IOException {
+            checkEntryCount();
+            if (record.size > limit)
+                throw new ZipLimitException();
+            ZipRecord copy = new ZipRecord(record.name, record.method, record.dosTime, record.crc32,
+                    record.compressedSize, record.size);
+            copy.headerOffset = position;
+            writeLocalHeader(copy, 0);
+
+            from.seek(record.dataOffset);
+            long remaining = record.compressedSize;
+            while (remaining > 0) {
+                int read = from.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+                if (read == -1)
+                    throw new IOException("The previous export bundle is truncated");
+                out.write(copyBuffer, 0, read);
+                position += read;
+                remaining -= read;
+                checkPosition();
+            }
+            written.add(copy);
+        }
+
+        /**
+         * Method to write the central directory which ends the zip file. Every entry must have been closed.
+         *
+         * @throws IOException if the bundle could not be written.
+         */
+        private void finish() throws IOException {
+            long directoryOffset = position;
+            for (ZipRecord record : written) {
+                byte[] name = record.name.getBytes(StandardCharsets.UTF_8);
+                writeInt(CENTRAL_HEADER_SIGNATURE);
+                writeShort(VERSION);
+                writeShort(VERSION);
+                writeShort(0);
+                writeShort(record.method);
+                writeInt(record.dosTime);
+                writeInt((int) record.crc32);
+                writeInt((int) record.compressedSize);
+                writeInt((int) record.size);
+                writeShort(name.length);
+                //extra field, comment, disk number and attributes.
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeInt(0);
+                writeInt((int) record.headerOffset);
+                writeBytes(name);
+            }
+            long directorySize = position - directoryOffset;
+            //every offset and size written so far is within the bundle, so none is past the limit if its end is not.
+            checkPosition();
+
+            writeInt(END_SIGNATURE);
+            writeShort(0);
+            writeShort(0);
+            writeShort(written.size());
+            writeShort(written.size());
+            writeInt((int) directorySize);
+            writeInt((int) directoryOffset);
+            writeShort(0);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            out.close();
+        }
+
+        private void checkEntryCount() throws ZipLimitException {
+            if (written.size() >= MAX_ENTRIES)
+                throw new ZipLimitException();
+        }
+
+        private void checkPosition() throws ZipLimitException {
+            if (position > limit)
+                throw new ZipLimitException();
+        }
+
+        private void writeLocalHeader(ZipRecord record, int flags) throws IOException {
+            byte[] name = record.name.getBytes(StandardCharsets.UTF_8);
+            writeInt(LOCAL_HEADER_SIGNATURE);
+            writeShort(VERSION);
+            writeShort(flags);
+            writeShort(record.method);
+            writeInt(record.dosTime);
+            writeInt((int) record.crc32);
+            writeInt((int) record.compressedSize);
+            writeInt((int) record.size);
+            writeShort(name.length);
+            writeShort(0);
+            writeBytes(name);
+        }
+
+        private void deflate() throws IOException {
+            int length = deflater.deflate(deflated, 0, deflated.length);
+            out.write(deflated, 0, length);
+            position += length;
+            checkPosition();
+        }
+
+        private void writeShort(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >>> 8) & 0xff);
+            position += 2;
+        }
+
+        private void writeInt(int value) throws IOException {
+            writeShort(value & 0xffff);
+            writeShort((value >>> 16) & 0xffff);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        /**
+         * Method to convert a time to the MS-DOS format zip files use, to the nearest two seconds.
+         *
+         * @param millis the time (epoch millis).
+         * @return the time in the low half and the date in the high half.
+         */
+        private static int toDosTime(long millis) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(millis);
+            int year = calendar.get(Calendar.YEAR);
+            if (year < 1980)
+                return (1 << 21) | (1 << 16);
+            return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) |
+                    (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+                    (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+        }
+    }
+
+    /**
+     * Class which counts CSV records in a stream of bytes.
+     * Line breaks inside quoted fields are part of a message body, so only those outside quotes end a record.
+     */
+    private static class RecordCounter {
+        private int records = 0;
+        private boolean quoted = false;
+
+        private void update(byte[] bytes, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = bytes[i];
+                //an escaped quote toggles the state twice, so leaves it unchanged.
+                if (b == '"')
+                    quoted = !quoted;
+                else if (b == '\n' && !quoted)
+                    records++;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Class which persists the high-water mark of the last text message exported to disk.
+ * This allows the exporter to only ask the content provider for messages newer than the last one written.
+ *
+ * @author Bradley Davis
+ */
+public class ExportCheckpoint {
+    private static final String PREFERENCES_NAME = "TrackAndTraceExport";
+    private static final String KEY_LAST_ID = "lastExportedId";
+    private static final String KEY_LAST_DATE = "lastExportedDate";
+    public static final long NONE = -1;
+
+    private final SharedPreferences preferences;
+
+    /**
+     * Constructor to pass in the context of the application.
+     *
+     * @param context Application context.
+     */
+    public ExportCheckpoint(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Method to get the _id of the last message exported.
+     *
+     * @return the _id of the last message exported or NONE if nothing has been exported yet.
+     */
+    public long getLastId() {
+        return preferences.getLong(KEY_LAST_ID, NONE);
+    }
+
+    /**
+     * Method to get the date of the last message exported.
+     *
+     * @return the date (epoch millis) of the last message exported or NONE if nothing has been exported yet.
+     */
+    public long getLastDate() {
+        return preferences.getLong(KEY_LAST_DATE, NONE);
+    }
+
+    /**
+     * Method to check whether or not a checkpoint has been stored.
+     *
+     * @return whether or not a checkpoint exists.
+     */
+    public boolean exists() {
+        return getLastId() != NONE;
+    }
+
+    /**
+     * Method to store a new checkpoint.
+     *
+     * @param id the _id of the newest message exported.
+     * @param date the date (epoch millis) of the newest message exported.
+     */
+    public void save(long id, long date) {
+        preferences.edit()
+                .putLong(KEY_LAST_ID, id)
+                .putLong(KEY_LAST_DATE, date)
+                .apply();
+    }
+}
@@ -0,0 +1,108 @@
+package online.bradleydavis.trackandtrace;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Job service which keeps the exported files up to date in the background.
+ * One job is triggered by changes to the SMS provider and exports the new messages. The provider also reports the
+ * messages this application adds and removes itself, so the job only exports if the inbox holds something new.
+ * The other runs periodically to enforce retention, exporting only if there is something new.
+ * The periodic job is kept across restarts of the device. Content triggered jobs cannot be, so that one is scheduled
+ * again by BootReceiver, and by every run of the periodic job in case it has been lost.
+ *
+ * @author Bradley Davis
+ */
+public class ExportJobService extends JobService {
+    private static final int NEW_MESSAGES_JOB_ID = 1;
+    private static final int MAINTENANCE_JOB_ID = 2;
+    private static final long MAINTENANCE_PERIOD_MILLIS = 60 * 60 * 1000;
+    private static final long NEW_MESSAGES_UPDATE_DELAY_MILLIS = 1000;
+    private static final long NEW_MESSAGES_MAX_DELAY_MILLIS = 10000;
+    private static final long WORK_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Method to schedule the background jobs. Jobs which are already scheduled are left alone.
+     *
+     * @param context Any context within the application.
+     */
+    public static void scheduleJobs(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null)
+            return;
+
+        if (jobScheduler.getPendingJob(NEW_MESSAGES_JOB_ID) == null)
+            scheduleNewMessagesJob(context, jobScheduler);
+
+        //versions before this scheduled the periodic job without keeping it across restarts.
+        JobInfo maintenanceJob = jobScheduler.getPendingJob(MAINTENANCE_JOB_ID);
+        if (maintenanceJob == null || !maintenanceJob.isPersisted()) {
+            jobScheduler.schedule(new JobInfo.Builder(MAINTENANCE_JOB_ID, new ComponentName(context, ExportJobService.class))
+                    .setPeriodic(MAINTENANCE_PERIOD_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    /**
+     * Method to schedule the job which fires when the SMS provider changes.
+     * Content triggered jobs only fire once, so this is rescheduled every time it runs.
+     *
+     * @param context Any context within the application.
+     * @param jobScheduler the system job scheduler.
+     */
+    private static void scheduleNewMessagesJob(Context context, JobScheduler jobScheduler) {
+        jobScheduler.schedule(new JobInfo.Builder(NEW_MESSAGES_JOB_ID, new ComponentName(context, ExportJobService.class))
+                .addTriggerContentUri(new JobInfo.TriggerContentUri(Uri.parse("content://sms"),
+                        JobInfo.TriggerContentUri.FLAG_NOTIFY_FOR_DESCENDANTS))
+                .setTriggerContentUpdateDelay(NEW_MESSAGES_UPDATE_DELAY_MILLIS)
+                .setTriggerContentMaxDelay(NEW_MESSAGES_MAX_DELAY_MILLIS)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final boolean newMessagesJob = params.getJobId() == NEW_MESSAGES_JOB_ID;
+
+        //starting the storage manager opens the database and reads the device id, and waiting for the export worker
+        //blocks, so everything is done off the main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StorageManager storageManager = StorageManager.getInstance(ExportJobService.this);
+                if (!newMessagesJob)
+                    storageManager.RunRetention();
+                storageManager.UpdateFilesIfNew();
+
+                try {
+                    storageManager.AwaitUpdates(WORK_TIMEOUT_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Log.d("TrackAndTrace Jobs", "Interrupted waiting for export");
+                }
+
+                if (newMessagesJob)
+                    scheduleNewMessagesJob(ExportJobService.this,
+                            (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE));
+                else
+                    scheduleJobs(ExportJobService.this);
+                jobFinished(params, false);
+            }
+        }, "TrackAndTrace job").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        //the work is queued on the export worker and will carry on, so there is nothing to stop.
+        if (params.getJobId() == NEW_MESSAGES_JOB_ID)
+            scheduleNewMessagesJob(this, (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE));
+        return false;
+    }
+}
@@ -0,0 +1,157 @@
+package online.bradleydavis.trackandtrace;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class which runs the export task on a single background worker.
+ * Requests which arrive while a run is already queued are merged into that run, so a burst of
+ * incoming messages results in one export rather than one thread per message.
+ *
+ * @author Bradley Davis
+ */
+public class ExportScheduler {
+    private final ScheduledExecutorService executor;
+    private final Runnable task;
+    private final long debounceMillis;
+    private final Object lock = new Object();
+    private boolean queued = false;
+    private int outstanding = 0;
+
+    /**
+     * Constructor for the scheduler.
+     *
+     * @param task the task to run for each (merged) request.
+     * @param debounceMillis how long to wait after the first request before running, so that further requests can be merged.
+     */
+    public ExportScheduler(Runnable task, long debounceMillis) {
+        this.task = task;
+        this.debounceMillis = debounceMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TrackAndTrace export");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Method to request that the task is run.
+     * If a run is already queued and has not started yet, this request is merged into it.
+     * If a run is in progress, one more run is queued to pick up anything it may have missed.
+     */
+    public void requestUpdate() {
+        synchronized (lock) {
+            if (queued)
+                return;
+            queued = true;
+            outstanding++;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    //from this point on, new requests need another run.
+                    queued = false;
+                }
+                try {
+                    task.run();
+                }
+                finally {
+                    synchronized (lock) {
+                        outstanding--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to run another task once on the same worker, so that it never runs at the same time as an export.
+     * The task counts as outstanding until it has finished.
+     *
+     * @param otherTask the task to run.
+     */
+    public void execute(Runnable otherTask) {
+        execute(otherTask, 0);
+    }
+
+    /**
+     * Method to run another task once on the same worker after a delay.
+     * The task counts as outstanding from now until it has finished.
+     *
+     * @param otherTask the task to run.
+     * @param delayMillis how long to wait before running the task.
+     */
+    public void execute(final Runnable otherTask, long delayMillis) {
+        synchronized (lock) {
+            outstanding++;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    otherTask.run();
+                }
+                finally {
+                    synchronized (lock) {
+                        outstanding--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to wait until there are no queued or running tasks.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return whether or not the scheduler became idle before the timeout.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (outstanding > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method to check whether or not there are any queued or running tasks.
+     *
+     * @return whether or not the scheduler is idle.
+     */
+    public boolean isIdle() {
+        synchronized (lock) {
+            return outstanding == 0;
+        }
+    }
+
+    /**
+     * Method to stop the worker. Queued runs which have not yet started are discarded.
+     */
+    public void shutdown() {
+        int discarded = executor.shutdownNow().size();
+        synchronized (lock) {
+            outstanding -= discarded;
+            queued = false;
+            lock.notifyAll();
+        }
+    }
+}
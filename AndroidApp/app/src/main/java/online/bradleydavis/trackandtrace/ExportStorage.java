@@ -0,0 +1,56 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Interface for where the exports are kept and how the desktop collector is told about them.
+ * Exports are always written as files in the working directory, as segments are appended to.
+ * After each export the files which changed are published, and after each retention run the files
+ * which were deleted are withdrawn, a whole batch at a time, so that the backends can be swapped and compared.
+ * Segments are only ever appended to, so they are published separately from files which are rewritten, which lets a
+ * backend which keeps a copy only copy what was appended.
+ *
+ * @author Bradley Davis
+ */
+public interface ExportStorage {
+    /**
+     * Method to get the directory the exports are written to.
+     *
+     * @return the working directory.
+     */
+    File getDirectory();
+
+    /**
+     * Method to make files in the working directory which have been created or changed visible to the collector.
+     *
+     * @param files the files which have changed.
+     * @throws IOException if the files could not be published.
+     */
+    void publish(List<File> files) throws IOException;
+
+    /**
+     * Method to make files in the working directory which have only been appended to since they were last published
+     * visible to the collector.
+     *
+     * @param files the files which have been appended to or created.
+     * @throws IOException if the files could not be published.
+     */
+    void publishAppended(List<File> files) throws IOException;
+
+    /**
+     * Method to stop showing files which have been deleted from the working directory.
+     *
+     * @param files the files which have been deleted.
+     * @throws IOException if the files could not be withdrawn.
+     */
+    void remove(List<File> files) throws IOException;
+
+    /**
+     * Method to get the name of the backend, for diagnostics.
+     *
+     * @return the name.
+     */
+    String getName();
+}
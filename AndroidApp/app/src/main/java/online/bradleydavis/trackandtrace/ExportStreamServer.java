@@ -0,0 +1,350 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * Class which serves the export as a single chunked HTTP response on the loopback interface, so that the desktop
+ * collector can pull everything in one request through adb forward rather than copying files over MTP one at a time.
+ * Only GET /messages is served. It accepts since (epoch millis, inclusive) to resume from the time of the newest record
+ * already collected and order (newest or oldest, newest by default). Records use the same CSV layout as the daily
+ * segments. Several messages can share a millisecond, so the records at the cursor are sent again and the collector
+ * drops the ones it already holds by their content hash.
+ * Any app on the device can connect to the loopback interface, so every request must carry the token generated each
+ * time the server starts as "Authorization: Bearer &lt;token&gt;". The token is shown on the diagnostics screen.
+ * A response which fails part way through is cut off without its last chunk, so the collector can never mistake it for
+ * a complete export.
+ * Connections are served one at a time on the server's own thread.
+ * This has no Android dependencies so that it can be tested on the desktop.
+ *
+ * @author Bradley Davis
+ */
+public class ExportStreamServer {
+    public static final int DEFAULT_PORT = 8323;
+    public static final String PATH = "/messages";
+    private static final int SOCKET_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_REQUEST_LINE = 4096;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int TOKEN_BYTES = 16;
+    private static final String AUTHORIZATION = "authorization:";
+    private static final String BEARER = "Bearer ";
+
+    private final int port;
+    private final Source source;
+    private final SecureRandom random = new SecureRandom();
+    private volatile ServerSocket serverSocket;
+    private volatile String token;
+    private Thread thread;
+
+    /**
+     * Interface through which the server gets the messages to stream.
+     */
+    public interface Source {
+        /**
+         * Called on the server's thread to write every message sent at or after a time.
+         *
+         * @param sinceMillis the time (epoch millis) the messages must be sent at or after.
+         * @param newestFirst whether to write the newest message first rather than the oldest.
+         * @param writer the writer to write each message to.
+         * @throws IOException if the messages could not be written, for example because the client went away.
+         */
+        void writeMessages(long sinceMillis, boolean newestFirst, CsvRecordWriter writer) throws IOException;
+    }
+
+    /**
+     * Constructor for the server.
+     *
+     * @param port the port to listen on, or 0 for any free port.
+     * @param source where the messages are taken from.
+     */
+    public ExportStreamServer(int port, Source source) {
+        this.port = port;
+        this.source = source;
+    }
+
+    /**
+     * Method to start listening with a new token. Does nothing if the server is already running.
+     *
+     * @throws IOException if the port could not be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null)
+            return;
+
+        //only the device itself (and so adb forward) can connect, and only requests with the token are answered.
+        final ServerSocket listening = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        random.nextBytes(tokenBytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : tokenBytes)
+            hex.append(String.format("%02x", b));
+        token = hex.toString();
+        serverSocket = listening;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!listening.isClosed()) {
+                    try {
+                        Socket socket = listening.accept();
+                        try {
+                            serve(socket);
+                        }
+                        catch (RuntimeException e) {
+                            //the source failed, for example with a database error. Only this response is lost.
+                        }
+                        finally {
+                            socket.close();
+                        }
+                    }
+                    catch (IOException e) {
+                        //the client went away or the server was stopped. Either way, carry on or finish.
+                    }
+                }
+            }
+        }, "TrackAndTrace stream server");
+        thread.start();
+    }
+
+    /**
+     * Method to stop listening and wait for the current response to be abandoned.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (serverSocket == null)
+            return;
+
+        try {
+            serverSocket.close();
+        }
+        catch (IOException e) {
+            //it is closed either way.
+        }
+        thread.join(SOCKET_TIMEOUT_MILLIS);
+        serverSocket = null;
+        token = null;
+        thread = null;
+    }
+
+    /**
+     * Method to check whether or not the server is listening.
+     *
+     * @return whether or not the server is running.
+     */
+    public boolean isRunning() {
+        return serverSocket != null;
+    }
+
+    /**
+     * Method to get the token requests must carry.
+     *
+     * @return the token for this run of the server, or null if the server is not running.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Method to get the port the server is listening on.
+     *
+     * @return the port, or -1 if the server is not running.
+     */
+    public int getPort() {
+        ServerSocket listening = serverSocket;
+        return listening == null ? -1 : listening.getLocalPort();
+    }
+
+    /**
+     * Method to answer a single request.
+     *
+     * @param socket the connection to the client.
+     * @throws IOException if the client could not be read from or written to.
+     */
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+
+        String requestLine = readLine(in);
+        //every header is read so the client is not reset while still sending them, but only the token is needed.
+        String authorization = null;
+        String header;
+        do {
+            header = readLine(in);
+            if (header != null && header.toLowerCase(Locale.ROOT).startsWith(AUTHORIZATION))
+                authorization = header.substring(AUTHORIZATION.length()).trim();
+        }
+        while (header != null && !header.isEmpty());
+
+        String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+            writeError(out, "400 Bad Request");
+            return;
+        }
+        if (!"GET".equals(parts[0])) {
+            writeError(out, "405 Method Not Allowed");
+            return;
+        }
+
+        if (!isAuthorized(authorization)) {
+            writeError(out, "401 Unauthorized");
+            return;
+        }
+
+        String target = parts[1];
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        if (!PATH.equals(path)) {
+            writeError(out, "404 Not Found");
+            return;
+        }
+
+        long since = Long.MIN_VALUE;
+        boolean newestFirst = true;
+        if (queryStart >= 0) {
+            for (String parameter : target.substring(queryStart + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                String name = equals < 0 ? parameter : parameter.substring(0, equals);
+                String value = equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+                if ("since".equals(name)) {
+                    try {
+                        since = Long.parseLong(value);
+                    }
+                    catch (NumberFormatException e) {
+                        writeError(out, "400 Bad Request");
+                        return;
+                    }
+                }
+                else if ("order".equals(name)) {
+                    if (!"newest".equals(value) && !"oldest".equals(value)) {
+                        writeError(out, "400 Bad Request");
+                        return;
+                    }
+                    newestFirst = "newest".equals(value);
+                }
+            }
+        }
+
+        out.write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/csv; charset=utf-8\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        //closing the writer writes the last chunk, which ends the response. If the source fails the connection is
+        //closed without it, so the collector sees a truncated transfer rather than a short export.
+        CsvRecordWriter writer = new CsvRecordWriter(new ChunkedOutputStream(out));
+        source.writeMessages(since, newestFirst, writer);
+        writer.close();
+    }
+
+    /**
+     * Method to check the credentials sent with a request against the token, taking the same time whatever they are.
+     *
+     * @param authorization the value of the Authorization header, or null if there was none.
+     * @return whether or not the request carried the token.
+     */
+    private boolean isAuthorized(String authorization) {
+        String expected = token;
+        if (expected == null || authorization == null || !authorization.startsWith(BEARER))
+            return false;
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void writeError(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Method to read a single line of the request.
+     *
+     * @param in the request stream.
+     * @return the line without its terminator, or null if the stream ended first.
+     * @throws IOException if the line could not be read or is too long.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return line.toString();
+            }
+            if (line.length() == MAX_REQUEST_LINE)
+                throw new SocketException("request line too long");
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Stream which writes everything written to it as HTTP chunks, one chunk per flush of its buffer.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count = 0;
+
+        private ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length)
+                writeChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length)
+                    writeChunk();
+                int copied = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeChunk();
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            if (count == 0)
+                return;
+            out.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(buffer, 0, count);
+            out.write('\r');
+            out.write('\n');
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Environment;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Export storage which writes straight into the shared Documents folder and asks the media scanner to pick up each
+ * batch of changes, so that they show up (or disappear) over MTP. This needs legacy external storage access, so it is
+ * only used by default before Android 10.
+ *
+ * @author Bradley Davis
+ */
+public class FileExportStorage implements ExportStorage {
+    public static final String NAME = "files";
+
+    private final Context context;
+    private final File directory;
+
+    /**
+     * Constructor for the storage.
+     *
+     * @param context Application context.
+     */
+    public FileExportStorage(Context context) {
+        this.context = context;
+        this.directory = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS),
+                "TrackAndTrace");
+    }
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void publish(List<File> files) {
+        scan(files);
+    }
+
+    @Override
+    public void publishAppended(List<File> files) {
+        scan(files);
+    }
+
+    @Override
+    public void remove(List<File> files) {
+        //the scanner drops entries whose files no longer exist.
+        scan(files);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Method to hand every file in a batch to the media scanner in one request.
+     *
+     * @param files the files which have been changed or deleted.
+     */
+    private void scan(List<File> files) {
+        if (files.isEmpty())
+            return;
+
+        String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++)
+            paths[i] = files.get(i).getAbsolutePath();
+        MediaScannerConnection.scanFile(context, paths, null, null);
+        Metrics.increment(Metrics.MEDIA_SCANS);
+        Metrics.add(Metrics.MEDIA_SCAN_PATHS, paths.length);
+    }
+}
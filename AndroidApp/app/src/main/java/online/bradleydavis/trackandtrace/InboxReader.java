@@ -0,0 +1,133 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Class which is the single place the inbox is read from.
+ * Only the columns in MessageRowReader.PROJECTION are requested and the retention window is always part of the
+ * provider selection, so expired rows are never read. Each row is decoded once and handed to every consumer in turn,
+ * so several consumers can share one pass over the inbox. The cursor is always closed before a read returns.
+ *
+ * @author Bradley Davis
+ */
+public class InboxReader {
+    public static final Uri SMS_INBOX = Uri.parse("content://sms/inbox");
+    public static final String ORDER_OLDEST_FIRST = "_id ASC";
+    public static final String ORDER_NEWEST_FIRST = "_id DESC";
+    private static final String WINDOW_SELECTION = "date > ?";
+
+    private final ContentResolver contentResolver;
+
+    /**
+     * Constructor for the reader.
+     *
+     * @param contentResolver the resolver to query the inbox through.
+     */
+    public InboxReader(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Method to read every message within the retention window.
+     *
+     * @param sortOrder the order to read the rows in.
+     * @param consumers the consumers to hand each row to.
+     * @return the number of rows read.
+     */
+    public int readWindow(String sortOrder, MessageConsumer... consumers) {
+        return read(null, null, sortOrder, 0, consumers);
+    }
+
+    /**
+     * Method to read the messages within the retention window matching a selection.
+     *
+     * @param selection the selection to apply on top of the retention window, or null for the whole window.
+     * @param selectionArgs the arguments for the selection.
+     * @param sortOrder the order to read the rows in.
+     * @param limit the maximum number of rows to read, or 0 for no limit.
+     * @param consumers the consumers to hand each row to.
+     * @return the number of rows read.
+     */
+    public int read(String selection, String[] selectionArgs, String sortOrder, int limit,
+                    MessageConsumer... consumers) {
+        //the window is placed first, so the caller's arguments follow the cutoff.
+        String windowSelection = selection == null ? WINDOW_SELECTION : WINDOW_SELECTION + " AND (" + selection + ")";
+        int argumentCount = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] windowArgs = new String[argumentCount + 1];
+        windowArgs[0] = String.valueOf(RetentionEngine.getCutoff());
+        if (argumentCount > 0)
+            System.arraycopy(selectionArgs, 0, windowArgs, 1, argumentCount);
+        String windowSortOrder = limit > 0 ? sortOrder + " LIMIT " + limit : sortOrder;
+
+        long queryStart = Metrics.startTimer();
+        Cursor cursor = contentResolver.query(SMS_INBOX, MessageRowReader.PROJECTION,
+                windowSelection, windowArgs, windowSortOrder);
+        Metrics.stopTimer(Metrics.PROVIDER_QUERY, queryStart);
+        if (cursor == null)
+            return 0;
+
+        int rows = 0;
+        try {
+            MessageRowReader rowReader = new MessageRowReader(cursor);
+            if (!rowReader.isValid())
+                return 0;
+
+            while ((limit <= 0 || rows < limit) && cursor.moveToNext()) {
+                SingleMessage message = rowReader.read(cursor);
+                rows++;
+                for (MessageConsumer consumer : consumers)
+                    consumer.accept(message);
+            }
+        }
+        finally {
+            cursor.close();
+            Metrics.add(Metrics.ROWS_SCANNED, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Method to check whether or not any row matches a selection, reading only its _id.
+     * Unlike the other reads, this is not limited to the retention window.
+     *
+     * @param selection the selection to apply.
+     * @param selectionArgs the arguments for the selection.
+     * @return whether or not a row matches.
+     */
+    public boolean exists(String selection, String[] selectionArgs) {
+        Cursor cursor = contentResolver.query(SMS_INBOX, new String[] {"_id"}, selection, selectionArgs,
+                ORDER_OLDEST_FIRST + " LIMIT 1");
+        if (cursor == null)
+            return false;
+
+        try {
+            return cursor.moveToFirst();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Method to count the rows matching a selection, reading only their _id.
+     * Unlike the other reads, this is not limited to the retention window.
+     *
+     * @param selection the selection to apply.
+     * @param selectionArgs the arguments for the selection.
+     * @return the number of rows, or -1 if the inbox could not be read.
+     */
+    public int count(String selection, String[] selectionArgs) {
+        Cursor cursor = contentResolver.query(SMS_INBOX, new String[] {"_id"}, selection, selectionArgs, null);
+        if (cursor == null)
+            return -1;
+
+        try {
+            return cursor.getCount();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
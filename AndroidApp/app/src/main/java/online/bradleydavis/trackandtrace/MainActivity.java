@@ -8,27 +8,25 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.Manifest;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.provider.Telephony;
-import android.util.Log;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * The activity class for the application.
@@ -38,18 +36,24 @@ import java.util.Locale;
 public class MainActivity extends AppCompatActivity {
 
     ListView messages;
-    ArrayAdapter arrayAdapter;
+    EditText search;
+    ArrayAdapter<SingleMessage> arrayAdapter;
+    ArrayAdapter<SingleMessage> searchAdapter;
+    MessagePager messagePager;
+    MessageSearch messageSearch;
     BroadcastReceiver localBroadcastReceiver;
     StorageManager storageManager;
     private static final int DEFAULT_APPLICATION_REQUEST = 99;
     private static final int READ_SMS_PERMISSIONS_REQUEST = 1;
     private static final int ACCESS_EXTERNAL_STORAGE_REQUEST = 2;
+    private static final int PAGE_PREFETCH_DISTANCE = 10;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        storageManager = new StorageManager(this);
-
         super.onCreate(savedInstanceState);
+        final long createStart = System.nanoTime();
+        //applied here, before the storage manager starts, so that startup itself can be measured.
+        DiagnosticSettings.apply(this);
         setContentView(R.layout.activity_main);
 
         if (!isDefaultApp()){
@@ -62,6 +66,12 @@ public class MainActivity extends AppCompatActivity {
         messages = (ListView) findViewById(R.id.messages);
         arrayAdapter = new MessagesArrayAdapter(this, new ArrayList<SingleMessage>());
         messages.setAdapter(arrayAdapter);
+        messagePager = new MessagePager(this, createPagerListener(createStart));
+        messages.setOnScrollListener(createScrollListener());
+        messages.getViewTreeObserver().addOnPreDrawListener(createFirstFrameListener(createStart));
+        searchAdapter = new MessagesArrayAdapter(this, new ArrayList<SingleMessage>());
+        messageSearch = new MessageSearch(this, createSearchListener());
+        search = (EditText) findViewById(R.id.search);
 
         //ensure that we have asked for the relevant permissions
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_SMS)
@@ -74,84 +84,280 @@ public class MainActivity extends AppCompatActivity {
         }
 
         //if we have all of the correct permissions, we can run
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_SMS)
+        boolean permitted = ContextCompat.checkSelfPermission(this, Manifest.permission.READ_SMS)
                 == PackageManager.PERMISSION_GRANTED &&
                 ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE)
-                        == PackageManager.PERMISSION_GRANTED) {
-            refreshSmsInbox();
+                        == PackageManager.PERMISSION_GRANTED;
+        if (permitted) {
+            //show what the last session saved while the inbox is read behind it.
+            messagePager.loadSavedMessages();
+            messagePager.loadNextPage();
+            search.addTextChangedListener(createSearchWatcher());
 
-            //register for updates when messages arrive
+            //register for updates when messages arrive or expire
             localBroadcastReceiver = createReceiver();
+            IntentFilter intentFilter = new IntentFilter(SmsBroadcastReceiver.ACTION_MESSAGE_RECEIVED);
+            intentFilter.addAction(RetentionEngine.ACTION_MESSAGES_EXPIRED);
             LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(this);
-            localBroadcastManager.registerReceiver(localBroadcastReceiver, new IntentFilter("online.bradleydavis.TrackAndTrace"));
-
-            //restart the activity after 10 minutes
-            final Handler handler = new Handler();
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    recreate();
-                }
-            }, 600000);
+            localBroadcastManager.registerReceiver(localBroadcastReceiver, intentFilter);
         }
+        else {
+            //there is nothing to search until the inbox can be read.
+            search.setEnabled(false);
+        }
+        startStorage(permitted);
+    }
+
+    /**
+     * Method which starts the storage manager on a background thread, so that creating the export directory and
+     * reading the device id never hold up the first frame. Once started, the exports are brought up to date.
+     *
+     * @param permitted whether or not the application may read the inbox and write the exports.
+     */
+    private void startStorage(final boolean permitted) {
+        final Context applicationContext = getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final StorageManager started = StorageManager.getInstance(applicationContext);
+                if (permitted) {
+                    //keep the exports and retention up to date in the background.
+                    started.UpdateFiles();
+                    ExportJobService.scheduleJobs(applicationContext);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        storageManager = started;
+                    }
+                });
+            }
+        }, "TrackAndTrace startup").start();
     }
 
     /**
      * Method which refreshes the inbox. This is called when any text messages are received.
+     * Only messages newer than those already in the list are loaded, on a background thread.
      */
     public void refreshSmsInbox() {
+        long start = Metrics.startTimer();
         //ensure that we also update the files on the device with the new messages.
-        storageManager.UpdateFiles();
-
-        Calendar calendar = Calendar.getInstance(); 
-        calendar.add(Calendar.DATE, -21);
-        Date twentyOneDaysAgo = calendar.getTime();
-        SimpleDateFormat timeConverter = new SimpleDateFormat("HH:mm", Locale.ENGLISH);
-        SimpleDateFormat dateConverter = new SimpleDateFormat("dd/MM/yyyy", Locale.ENGLISH);
-
-        //retrieve messages from database.
-        ContentResolver contentResolver = getContentResolver();
-        Cursor smsInboxCursor = contentResolver.query(Uri.parse("content://sms/inbox"), null, null, null, null);
-        int indexID = smsInboxCursor.getColumnIndex("_id");
-        int indexBody = smsInboxCursor.getColumnIndex("body");
-        int indexAddress = smsInboxCursor.getColumnIndex("address");
-        int indexTimeStamp = smsInboxCursor.getColumnIndex("date");
-
-        //start at the first message if there are any messages.
-        if (indexBody < 0 || !smsInboxCursor.moveToFirst()) return;
-
-        //fill the array adapter with the messages.
-        arrayAdapter.clear();
-        do {
-            //get message details
-            long id = smsInboxCursor.getLong(indexID);
-            String phoneNumber = smsInboxCursor.getString(indexAddress);
-            String timeStamp = smsInboxCursor.getString(indexTimeStamp);
-            Date dateStamp = new Date(Long.parseLong(timeStamp));
-            String time = timeConverter.format(dateStamp);
-            String date = dateConverter.format(dateStamp);
-            String messageBody = smsInboxCursor.getString(indexBody);
-
-            //if the message is over 21 days old, don't show it in the list and attempt to delete it
-            if (dateStamp.before(twentyOneDaysAgo)) {
-                try {
-                    contentResolver.delete(Uri.parse("content://sms/" + id), null, null);
+        //until the storage manager has started this is left to it, as it updates the files once started.
+        if (storageManager != null)
+            storageManager.UpdateFiles();
+
+        messagePager.loadNewMessages();
+        Metrics.stopTimer(Metrics.UI_REFRESH, start);
+    }
+
+    /**
+     * Creates the listener which records how long the first frame took to be drawn after the activity was created.
+     *
+     * @param createStart the time the activity was created (System.nanoTime).
+     * @return the pre-draw listener.
+     */
+    private ViewTreeObserver.OnPreDrawListener createFirstFrameListener(final long createStart) {
+        return new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                messages.getViewTreeObserver().removeOnPreDrawListener(this);
+                Metrics.record(Metrics.STARTUP_FIRST_FRAME, (System.nanoTime() - createStart) / 1000);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates the listener which applies pages loaded by the message pager to the list.
+     * Messages saved by the last session are shown until the first page arrives, which is when the list is complete
+     * for the purpose of measuring startup.
+     *
+     * @param createStart the time the activity was created (System.nanoTime).
+     * @return the pager listener.
+     */
+    private MessagePager.Listener createPagerListener(final long createStart) {
+        return new MessagePager.Listener() {
+            private boolean showingSaved = false;
+            private boolean firstPageLoaded = false;
+
+            @Override
+            public void onSavedMessages(List<SingleMessage> saved) {
+                if (!arrayAdapter.isEmpty())
+                    return;
+                arrayAdapter.addAll(saved);
+                showingSaved = true;
+            }
+
+            @Override
+            public void onPageLoaded(List<SingleMessage> page) {
+                long start = Metrics.startTimer();
+                arrayAdapter.setNotifyOnChange(false);
+                if (showingSaved) {
+                    //swap the saved messages for the inbox in one change, so the list does not flicker.
+                    arrayAdapter.clear();
+                    showingSaved = false;
                 }
-                catch (Exception e) {
-                    Log.d("TrackAndTrace", e.getMessage());
+                arrayAdapter.addAll(page);
+                arrayAdapter.notifyDataSetChanged();
+                Metrics.stopTimer(Metrics.UI_REBUILD, start);
+
+                if (!firstPageLoaded) {
+                    firstPageLoaded = true;
+                    Metrics.record(Metrics.STARTUP_FULL_LIST, (System.nanoTime() - createStart) / 1000);
                 }
             }
-            else {
-                arrayAdapter.add(new SingleMessage(phoneNumber, date, time, messageBody));
+
+            @Override
+            public void onNewMessages(List<SingleMessage> newMessages) {
+                long start = Metrics.startTimer();
+                //keep the list newest first by inserting each newer message at the top.
+                arrayAdapter.setNotifyOnChange(false);
+                for (SingleMessage message : newMessages)
+                    arrayAdapter.insert(message, 0);
+                arrayAdapter.notifyDataSetChanged();
+                Metrics.stopTimer(Metrics.UI_REBUILD, start);
+
+                //the index is updated before the search is run again, as both run on the search's thread.
+                messageSearch.addMessages(newMessages);
+                if (search.length() > 0)
+                    messageSearch.search(search.getText().toString());
+            }
+        };
+    }
+
+    /**
+     * Creates the text watcher which searches as the user types.
+     *
+     * @return the text watcher.
+     */
+    private TextWatcher createSearchWatcher() {
+        return new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
             }
-        } while (smsInboxCursor.moveToNext());
 
-        smsInboxCursor.close();
+            @Override
+            public void afterTextChanged(Editable s) {
+                messageSearch.search(s.toString());
+            }
+        };
+    }
+
+    /**
+     * Creates the listener which shows search results in place of the list, and the list again once the search
+     * is cleared. The list keeps loading behind the results so that nothing is lost while searching.
+     *
+     * @return the search listener.
+     */
+    private MessageSearch.Listener createSearchListener() {
+        return new MessageSearch.Listener() {
+            @Override
+            public void onResults(String query, List<SingleMessage> results) {
+                long start = Metrics.startTimer();
+                if (query.trim().isEmpty()) {
+                    if (messages.getAdapter() != arrayAdapter)
+                        messages.setAdapter(arrayAdapter);
+                    searchAdapter.clear();
+                }
+                else {
+                    searchAdapter.setNotifyOnChange(false);
+                    searchAdapter.clear();
+                    searchAdapter.addAll(results);
+                    searchAdapter.notifyDataSetChanged();
+                    if (messages.getAdapter() != searchAdapter)
+                        messages.setAdapter(searchAdapter);
+                }
+                Metrics.stopTimer(Metrics.UI_REBUILD, start);
+            }
+        };
+    }
+
+    /**
+     * Creates the scroll listener which loads the next page of messages as the end of the list approaches.
+     *
+     * @return the scroll listener.
+     */
+    private AbsListView.OnScrollListener createScrollListener() {
+        return new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                //search results are complete, so only the list itself needs more pages.
+                if (view.getAdapter() == arrayAdapter && totalItemCount > 0 &&
+                        firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH_DISTANCE)
+                    messagePager.loadNextPage();
+            }
+        };
+    }
+
+    /**
+     * Method which removes messages from the list once they are over 21 days old.
+     * The list is newest first, so expired messages are always at the end.
+     */
+    public void removeExpiredMessages() {
+        long start = Metrics.startTimer();
+        long cutoff = RetentionEngine.getCutoff();
+        arrayAdapter.setNotifyOnChange(false);
+        int count = arrayAdapter.getCount();
+        while (count > 0 && arrayAdapter.getItem(count - 1).getTimestamp() <= cutoff) {
+            arrayAdapter.remove(arrayAdapter.getItem(count - 1));
+            count--;
+        }
+        arrayAdapter.notifyDataSetChanged();
+        Metrics.stopTimer(Metrics.UI_REBUILD, start);
+
+        messageSearch.removeExpiredMessages();
+        if (search.length() > 0)
+            messageSearch.search(search.getText().toString());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        }
+        if (item.getItemId() == R.id.export_contacts) {
+            exportContacts();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Method to export the contacts of the phone number in the search box, for the health authority to collect.
+     * The storage manager reports the result once the export has been written.
+     */
+    private void exportContacts() {
+        String number = search.getText().toString().trim();
+        if (!MessageSearchIndex.isNumberQuery(number)) {
+            Toast.makeText(this, "Search for the phone number of the case first", Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (storageManager == null) {
+            Toast.makeText(this, "Still starting - try again shortly", Toast.LENGTH_LONG).show();
+            return;
+        }
+        storageManager.ExportTrace(number);
     }
 
     /**
      * Creates the local broadcast receiver which listens for the local broadcasts.
-     * When a message is received, a local broadcast is sent out which this picks up.
+     * When messages are received, one local broadcast is sent out for the batch which this picks up.
+     * When the retention engine deletes messages, it sends a broadcast so that they leave the list.
      *
      * @return the broadcast receiver.
      */
@@ -159,11 +365,34 @@ public class MainActivity extends AppCompatActivity {
         return new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                refreshSmsInbox();
+                if (RetentionEngine.ACTION_MESSAGES_EXPIRED.equals(intent.getAction()))
+                    removeExpiredMessages();
+                else if (intent.hasExtra(SmsBroadcastReceiver.EXTRA_IDS))
+                    //the receiver has already exported the messages, so they only need adding to the list.
+                    messagePager.addReceivedMessages(getReceivedMessages(intent));
+                else
+                    refreshSmsInbox();
             }
         };
     }
 
+    /**
+     * Method to read the batch of messages a receiver broadcast carries.
+     *
+     * @param intent the broadcast.
+     * @return the messages, in the order they were added to the inbox.
+     */
+    private static List<SingleMessage> getReceivedMessages(Intent intent) {
+        long[] ids = intent.getLongArrayExtra(SmsBroadcastReceiver.EXTRA_IDS);
+        String[] addresses = intent.getStringArrayExtra(SmsBroadcastReceiver.EXTRA_ADDRESSES);
+        String[] bodies = intent.getStringArrayExtra(SmsBroadcastReceiver.EXTRA_BODIES);
+        long[] dates = intent.getLongArrayExtra(SmsBroadcastReceiver.EXTRA_DATES);
+        List<SingleMessage> received = new ArrayList<SingleMessage>(ids.length);
+        for (int i = 0; i < ids.length; i++)
+            received.add(new SingleMessage(ids[i], addresses[i], dates[i], bodies[i]));
+        return received;
+    }
+
     /**
      * Method to get permissions to Read the SMS messages
      */
@@ -261,6 +490,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        messagePager.shutdown();
+        messageSearch.shutdown();
         //tidy up the local broadcast manager.
         LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(this);
         localBroadcastManager.unregisterReceiver(localBroadcastReceiver);
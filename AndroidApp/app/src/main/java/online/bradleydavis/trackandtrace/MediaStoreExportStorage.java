@@ -0,0 +1,383 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Export storage for scoped storage, which writes the exports in the application's own external directory and
+ * publishes a copy of each into Documents/TrackAndTrace through MediaStore.
+ * Publishing a batch looks up the existing entries with one query, registers new files and hides changed ones with one
+ * batch of operations, copies the files, then shows them all again with a second batch. Segments which have already
+ * been published only have the bytes appended since copied across, so a received message costs one small write.
+ * Withdrawing deleted files is a single delete. This replaces a media scanner request per batch, and needs no storage
+ * permission.
+ *
+ * @author Bradley Davis
+ */
+@RequiresApi(Build.VERSION_CODES.Q)
+public class MediaStoreExportStorage implements ExportStorage {
+    public static final String NAME = "MediaStore";
+    public static final String RELATIVE_PATH = Environment.DIRECTORY_DOCUMENTS + "/TrackAndTrace/";
+    //well within the 999 arguments SQLite allows in one statement.
+    private static final int NAMES_PER_QUERY = 500;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TAIL_CHECK_BYTES = 256;
+
+    private final ContentResolver contentResolver;
+    private final File directory;
+    private final Uri collection = MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+
+    /**
+     * Constructor for the storage.
+     *
+     * @param context Application context.
+     */
+    public MediaStoreExportStorage(Context context) {
+        this.contentResolver = context.getContentResolver();
+        this.directory = new File(context.getExternalFilesDir(null), "TrackAndTrace");
+    }
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void publish(List<File> files) throws IOException {
+        Map<String, File> byName = byName(files);
+        if (byName.isEmpty())
+            return;
+
+        List<String> names = new ArrayList<String>(byName.keySet());
+        copyAll(names, byName, findEntries(names));
+    }
+
+    @Override
+    public void publishAppended(List<File> files) throws IOException {
+        Map<String, File> byName = byName(files);
+        if (byName.isEmpty())
+            return;
+
+        //files which have been published before only need what was appended since, which is usually one record.
+        List<String> names = new ArrayList<String>(byName.keySet());
+        Map<String, Uri> entries = findEntries(names);
+        List<String> created = new ArrayList<String>();
+        IOException failure = null;
+        int appended = 0;
+        for (String name : names) {
+            Uri entry = entries.get(name);
+            if (entry == null) {
+                created.add(name);
+                continue;
+            }
+            try {
+                copyTail(byName.get(name), entry);
+                appended++;
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+        Metrics.add(Metrics.MEDIA_STORE_ENTRIES, appended);
+
+        if (!created.isEmpty())
+            copyAll(created, byName, entries);
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Method to key files by name. A file changed twice in one batch only needs copying once.
+     *
+     * @param files the files to publish.
+     * @return the files keyed by name, in the order given.
+     */
+    private static Map<String, File> byName(List<File> files) {
+        Map<String, File> byName = new LinkedHashMap<String, File>();
+        for (File file : files)
+            byName.put(file.getName(), file);
+        return byName;
+    }
+
+    /**
+     * Method to copy whole files into their entries, creating any which do not exist yet.
+     *
+     * @param names the names of the files to copy.
+     * @param byName the files keyed by name.
+     * @param entries the entries which already exist, keyed by name.
+     * @throws IOException if any file could not be copied.
+     */
+    private void copyAll(List<String> names, Map<String, File> byName, Map<String, Uri> entries) throws IOException {
+        //register new files and hide existing ones while they are rewritten, so a half copied file is never seen.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(names.size());
+        for (String name : names) {
+            Uri entry = entries.get(name);
+            if (entry == null) {
+                operations.add(ContentProviderOperation.newInsert(collection)
+                        .withValue(MediaStore.MediaColumns.DISPLAY_NAME, name)
+                        .withValue(MediaStore.MediaColumns.MIME_TYPE, getMimeType(name))
+                        .withValue(MediaStore.MediaColumns.RELATIVE_PATH, RELATIVE_PATH)
+                        .withValue(MediaStore.MediaColumns.IS_PENDING, 1)
+                        .build());
+            }
+            else {
+                operations.add(ContentProviderOperation.newUpdate(entry)
+                        .withValue(MediaStore.MediaColumns.IS_PENDING, 1)
+                        .build());
+            }
+        }
+        ContentProviderResult[] results = applyBatch(operations);
+
+        //a file which fails to copy is left hidden until it is next published.
+        IOException failure = null;
+        operations = new ArrayList<ContentProviderOperation>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            Uri entry = results[i].uri != null ? results[i].uri : entries.get(names.get(i));
+            try {
+                copy(byName.get(names.get(i)), entry);
+            }
+            catch (IOException e) {
+                failure = e;
+                continue;
+            }
+            operations.add(ContentProviderOperation.newUpdate(entry)
+                    .withValue(MediaStore.MediaColumns.IS_PENDING, 0)
+                    .build());
+        }
+        if (!operations.isEmpty())
+            applyBatch(operations);
+        Metrics.add(Metrics.MEDIA_STORE_ENTRIES, operations.size());
+        if (failure != null)
+            throw failure;
+    }
+
+    @Override
+    public void remove(List<File> files) throws IOException {
+        for (int start = 0; start < files.size(); start += NAMES_PER_QUERY) {
+            List<File> batch = files.subList(start, Math.min(files.size(), start + NAMES_PER_QUERY));
+            String[] selectionArgs = new String[batch.size() + 1];
+            selectionArgs[0] = RELATIVE_PATH;
+            for (int i = 0; i < batch.size(); i++)
+                selectionArgs[i + 1] = batch.get(i).getName();
+
+            try {
+                contentResolver.delete(MediaStore.setIncludePending(collection), getNameSelection(batch.size()),
+                        selectionArgs);
+            }
+            catch (RuntimeException e) {
+                throw new IOException(e);
+            }
+            Metrics.increment(Metrics.MEDIA_STORE_BATCHES);
+            Metrics.add(Metrics.MEDIA_STORE_ENTRIES, batch.size());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Method to find the entries this application has already published for some files, hidden or not.
+     *
+     * @param names the names of the files.
+     * @return the entry of each file which has one, keyed by name.
+     * @throws IOException if MediaStore could not be queried.
+     */
+    private Map<String, Uri> findEntries(List<String> names) throws IOException {
+        Map<String, Uri> entries = new HashMap<String, Uri>();
+        for (int start = 0; start < names.size(); start += NAMES_PER_QUERY) {
+            List<String> batch = names.subList(start, Math.min(names.size(), start + NAMES_PER_QUERY));
+            String[] selectionArgs = new String[batch.size() + 1];
+            selectionArgs[0] = RELATIVE_PATH;
+            for (int i = 0; i < batch.size(); i++)
+                selectionArgs[i + 1] = batch.get(i);
+
+            Cursor cursor = contentResolver.query(MediaStore.setIncludePending(collection),
+                    new String[] {MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DISPLAY_NAME},
+                    getNameSelection(batch.size()), selectionArgs, null);
+            if (cursor == null)
+                throw new IOException("could not query MediaStore");
+
+            try {
+                while (cursor.moveToNext())
+                    entries.put(cursor.getString(1), ContentUris.withAppendedId(collection, cursor.getLong(0)));
+            }
+            finally {
+                cursor.close();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Method to build the selection matching files in the export folder by name.
+     *
+     * @param count how many names are bound after the folder.
+     * @return the selection.
+     */
+    private static String getNameSelection(int count) {
+        StringBuilder selection = new StringBuilder(MediaStore.MediaColumns.RELATIVE_PATH + " = ? AND " +
+                MediaStore.MediaColumns.DISPLAY_NAME + " IN (");
+        for (int i = 0; i < count; i++)
+            selection.append(i == 0 ? "?" : ", ?");
+        return selection.append(')').toString();
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws IOException {
+        try {
+            ContentProviderResult[] results = contentResolver.applyBatch(MediaStore.AUTHORITY, operations);
+            Metrics.increment(Metrics.MEDIA_STORE_BATCHES);
+            return results;
+        }
+        catch (RemoteException e) {
+            throw new IOException(e);
+        }
+        catch (OperationApplicationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Method to replace the contents of a published entry with a file.
+     *
+     * @param file the file in the working directory.
+     * @param entry the entry to write to.
+     * @throws IOException if the file could not be copied.
+     */
+    private void copy(File file, Uri entry) throws IOException {
+        OutputStream out = contentResolver.openOutputStream(entry, "wt");
+        if (out == null)
+            throw new IOException("could not open " + entry);
+
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Method to bring a published entry up to date with a file which has only been appended to, by copying the bytes
+     * after the end of the entry. The entry stays visible, as a file being appended to would.
+     * If the entry is longer than the file or its last few bytes differ from the file at the same place, the file has
+     * been replaced rather than appended to, so it is copied in full.
+     *
+     * @param file the file in the working directory.
+     * @param entry the entry to write to.
+     * @throws IOException if the file could not be copied.
+     */
+    private void copyTail(File file, Uri entry) throws IOException {
+        ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(entry, "rw");
+        if (descriptor == null)
+            throw new IOException("could not open " + entry);
+
+        //the channels share the descriptor, which is only closed once through the ParcelFileDescriptor.
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            FileChannel published = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+            FileChannel out = new FileOutputStream(descriptor.getFileDescriptor()).getChannel();
+            long publishedSize = published.size();
+            long start = isPrefix(source, published, publishedSize) ? publishedSize : 0;
+            if (start == 0)
+                out.truncate(0);
+
+            out.position(start);
+            long remaining = source.length() - start;
+            FileChannel in = source.getChannel();
+            while (remaining > 0) {
+                long copied = in.transferTo(source.length() - remaining, remaining, out);
+                if (copied <= 0)
+                    throw new IOException("could not copy " + file.getName());
+                remaining -= copied;
+            }
+        }
+        finally {
+            source.close();
+            descriptor.close();
+        }
+    }
+
+    /**
+     * Method to check whether or not a published copy still matches the start of a file, by comparing the bytes just
+     * before its end.
+     *
+     * @param source the file in the working directory.
+     * @param published the published copy.
+     * @param publishedSize the size of the published copy.
+     * @return whether or not the file looks like the published copy with data appended.
+     * @throws IOException if either could not be read.
+     */
+    private static boolean isPrefix(RandomAccessFile source, FileChannel published, long publishedSize)
+            throws IOException {
+        if (publishedSize == 0 || publishedSize > source.length())
+            return false;
+
+        int length = (int) Math.min(TAIL_CHECK_BYTES, publishedSize);
+        byte[] expected = new byte[length];
+        source.seek(publishedSize - length);
+        source.readFully(expected);
+
+        ByteBuffer actual = ByteBuffer.allocate(length);
+        while (actual.hasRemaining()) {
+            if (published.read(actual, publishedSize - length + actual.position()) < 0)
+                return false;
+        }
+        return Arrays.equals(expected, actual.array());
+    }
+
+    /**
+     * Method to get the MIME type of an export file from its extension.
+     *
+     * @param name the name of the file.
+     * @return the MIME type.
+     */
+    static String getMimeType(String name) {
+        if (name.endsWith(DailySegmentStore.SEGMENT_EXT))
+            return "text/csv";
+        if (name.endsWith(ExportBundleWriter.BUNDLE_NAME))
+            return "application/zip";
+        if (name.endsWith(".txt"))
+            return "text/plain";
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,216 @@
+package online.bradleydavis.trackandtrace;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Class which keeps the messages within the retention window in memory for the whole process, so that the list and
+ * the exporter do not have to read the inbox again every time they are recreated or run.
+ * Messages are keyed by _id and also kept in time order, so that expired messages are dropped from the oldest end.
+ * The cache is only complete once it has been filled from a full read of the inbox. Until then, and after it has been
+ * invalidated or has had to drop messages to stay within its size, readers fall back to the inbox.
+ * The cache is told about the messages this application adds, but not about messages removed by anything other than
+ * retention, so the storage manager compares it with the inbox whenever the inbox changes.
+ *
+ * @author Bradley Davis
+ */
+public class MessageCache implements MessageConsumer {
+    public static final int MAX_MESSAGES = 100000;
+    private static MessageCache instance;
+
+    private static final Comparator<SingleMessage> TIME_ORDER = new Comparator<SingleMessage>() {
+        @Override
+        public int compare(SingleMessage a, SingleMessage b) {
+            if (a.getTimestamp() != b.getTimestamp())
+                return a.getTimestamp() < b.getTimestamp() ? -1 : 1;
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    private final int maxMessages;
+    private final TreeMap<Long, SingleMessage> byId = new TreeMap<Long, SingleMessage>();
+    private final TreeSet<SingleMessage> byTime = new TreeSet<SingleMessage>(TIME_ORDER);
+    private boolean complete = false;
+
+    /**
+     * Method to get the cache shared by the whole process.
+     *
+     * @return the shared cache.
+     */
+    public static synchronized MessageCache getInstance() {
+        if (instance == null)
+            instance = new MessageCache(MAX_MESSAGES);
+        return instance;
+    }
+
+    /**
+     * Constructor for a cache.
+     *
+     * Messages are held until the retention engine's cutoff passes them, so the cache never holds a message which
+     * retention has deleted, or drops one it still keeps, when the clocks change.
+     *
+     * @param maxMessages the most messages to hold. The oldest are dropped beyond this.
+     */
+    public MessageCache(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    public void accept(SingleMessage message) {
+        put(message);
+    }
+
+    /**
+     * Method to add a message to the cache, replacing any message with the same _id.
+     * Messages which have already expired are ignored.
+     *
+     * @param message the message to add.
+     */
+    public synchronized void put(SingleMessage message) {
+        evictExpired();
+        if (message.getTimestamp() <= RetentionEngine.getCutoff())
+            return;
+
+        SingleMessage replaced = byId.put(message.getId(), message);
+        if (replaced != null)
+            byTime.remove(replaced);
+        byTime.add(message);
+
+        //dropping a message means the inbox now holds something the cache does not.
+        while (byId.size() > maxMessages) {
+            byId.remove(byTime.pollFirst().getId());
+            complete = false;
+        }
+    }
+
+    /**
+     * Method to add several messages to the cache.
+     *
+     * @param messages the messages to add.
+     */
+    public synchronized void putAll(Collection<SingleMessage> messages) {
+        for (SingleMessage message : messages)
+            put(message);
+    }
+
+    /**
+     * Method to get a message by its _id.
+     *
+     * @param id the _id of the message.
+     * @return the message or null if it is not cached.
+     */
+    public synchronized SingleMessage get(long id) {
+        evictExpired();
+        return byId.get(id);
+    }
+
+    /**
+     * Method to get the number of messages held.
+     *
+     * @return the number of messages.
+     */
+    public synchronized int size() {
+        evictExpired();
+        return byId.size();
+    }
+
+    /**
+     * Method to check whether or not the cache holds every message in the window, so the inbox need not be read.
+     *
+     * @return whether or not the cache is complete.
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Method to record that the cache has just been filled from a full read of the inbox.
+     */
+    public synchronized void markComplete() {
+        complete = byId.size() <= maxMessages;
+    }
+
+    /**
+     * Method to empty the cache, for when the inbox may have changed in ways it was not told about.
+     */
+    public synchronized void invalidate() {
+        byId.clear();
+        byTime.clear();
+        complete = false;
+    }
+
+    /**
+     * Method to get the _id of the newest message held.
+     *
+     * @return the largest _id or -1 if the cache is empty.
+     */
+    public synchronized long getNewestId() {
+        evictExpired();
+        return byId.isEmpty() ? -1 : byId.lastKey();
+    }
+
+    /**
+     * Method to get the time of the oldest message held.
+     *
+     * @return the oldest time (epoch millis) or -1 if the cache is empty.
+     */
+    public synchronized long getOldestTimestamp() {
+        evictExpired();
+        return byTime.isEmpty() ? -1 : byTime.first().getTimestamp();
+    }
+
+    /**
+     * Method to get a page of messages older than a given _id.
+     *
+     * @param beforeId the _id the page ends before (exclusive).
+     * @param limit the most messages to return.
+     * @return the messages, newest first.
+     */
+    public synchronized List<SingleMessage> getBefore(long beforeId, int limit) {
+        evictExpired();
+        List<SingleMessage> page = new ArrayList<SingleMessage>(Math.min(limit, byId.size()));
+        Iterator<SingleMessage> older = byId.headMap(beforeId, false).descendingMap().values().iterator();
+        while (page.size() < limit && older.hasNext())
+            page.add(older.next());
+        return page;
+    }
+
+    /**
+     * Method to get every message newer than a given _id.
+     *
+     * @param afterId the _id the messages start after (exclusive).
+     * @return the messages, oldest first.
+     */
+    public synchronized List<SingleMessage> getAfter(long afterId) {
+        evictExpired();
+        return new ArrayList<SingleMessage>(byId.tailMap(afterId, false).values());
+    }
+
+    /**
+     * Method to drop every message sent before the cutoff.
+     *
+     * @param cutoffMillis the oldest time (epoch millis) which must be kept.
+     * @return the number of messages dropped.
+     */
+    synchronized int evictBefore(long cutoffMillis) {
+        int evicted = 0;
+        while (!byTime.isEmpty() && byTime.first().getTimestamp() <= cutoffMillis) {
+            byId.remove(byTime.pollFirst().getId());
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Method to drop every message which has passed the retention cutoff. This is cheap when nothing has expired,
+     * as only the oldest message is looked at.
+     */
+    private void evictExpired() {
+        evictBefore(RetentionEngine.getCutoff());
+    }
+}
@@ -0,0 +1,17 @@
+package online.bradleydavis.trackandtrace;
+
+/**
+ * Interface through which messages are handed over one at a time as they are read, for example from the inbox by
+ * InboxReader. It is kept apart from the reader so that the classes which consume messages have no Android
+ * dependencies.
+ *
+ * @author Bradley Davis
+ */
+public interface MessageConsumer {
+    /**
+     * Called for every message read.
+     *
+     * @param message the message read.
+     */
+    void accept(SingleMessage message);
+}
@@ -0,0 +1,318 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Class which keeps an app owned copy of the last 21 days of messages so that they can be searched on the device.
+ * Messages are indexed by phone number and date, and the bodies have a full text index.
+ *
+ * @author Bradley Davis
+ */
+public class MessageDatabase extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "messages.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String COLUMNS = "_id, address, date, body";
+    private static MessageDatabase instance;
+
+    /**
+     * Method to get the database shared by the whole application.
+     *
+     * @param context Any context within the application.
+     * @return the shared database.
+     */
+    public static synchronized MessageDatabase getInstance(Context context) {
+        if (instance == null)
+            instance = new MessageDatabase(context.getApplicationContext(), DATABASE_NAME);
+        return instance;
+    }
+
+    /**
+     * Constructor for a database other than the shared one.
+     *
+     * @param context Application context.
+     * @param name the name of the database file, or null to keep it in memory.
+     */
+    MessageDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        //a replaced row is deleted first, which only runs the delete trigger with recursive triggers on.
+        db.execSQL("PRAGMA recursive_triggers = ON");
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE messages (" +
+                "_id INTEGER PRIMARY KEY, " +
+                "address TEXT, " +
+                "number_key TEXT NOT NULL, " +
+                "date INTEGER NOT NULL, " +
+                "body TEXT)");
+        db.execSQL("CREATE INDEX messages_number_key ON messages (number_key, date)");
+        db.execSQL("CREATE INDEX messages_date ON messages (date)");
+
+        //the full text index stores no copy of the bodies and is kept in step by triggers.
+        db.execSQL("CREATE VIRTUAL TABLE messages_fts USING fts4(content=\"messages\", body)");
+        db.execSQL("CREATE TRIGGER messages_after_insert AFTER INSERT ON messages BEGIN " +
+                "INSERT INTO messages_fts (docid, body) VALUES (new._id, new.body); END");
+        db.execSQL("CREATE TRIGGER messages_before_delete BEFORE DELETE ON messages BEGIN " +
+                "INSERT INTO messages_fts (messages_fts, docid, body) VALUES ('delete', old._id, old.body); END");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //the database is only a mirror of the inbox, so it can be rebuilt from scratch.
+        db.execSQL("DROP TABLE IF EXISTS messages_fts");
+        db.execSQL("DROP TABLE IF EXISTS messages");
+        onCreate(db);
+    }
+
+    /**
+     * Method to add messages to the database. A message already present under the same _id is replaced, as the inbox
+     * reuses ids after it has been cleared or restored and the newest copy is the one the inbox holds.
+     *
+     * @param messages the messages to add.
+     */
+    public void insertAll(List<SingleMessage> messages) {
+        if (messages.isEmpty())
+            return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(
+                "INSERT OR REPLACE INTO messages (_id, address, number_key, date, body) VALUES (?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (SingleMessage message : messages) {
+                statement.bindLong(1, message.getId());
+                bindStringOrNull(statement, 2, message.getPhoneNumber());
+                statement.bindString(3, NumberKey.of(message.getPhoneNumber()));
+                statement.bindLong(4, message.getTimestamp());
+                bindStringOrNull(statement, 5, message.getMessageContent());
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    /**
+     * Method to start adding messages to the database in batches, for example as they are read from the inbox.
+     * The returned inserter must be flushed once every message has been added.
+     *
+     * @param batchSize the number of messages to add in each transaction.
+     * @return an inserter for this database.
+     */
+    public BatchInserter openBatchInserter(int batchSize) {
+        return new BatchInserter(batchSize);
+    }
+
+    /**
+     * Method to check whether or not the database holds any messages.
+     *
+     * @return whether or not the database is empty.
+     */
+    public boolean isEmpty() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT 1 FROM messages LIMIT 1", null);
+        try {
+            return !cursor.moveToFirst();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Method to delete every message older than the cutoff.
+     *
+     * @param cutoff the oldest time (epoch millis) which must be kept.
+     * @return the number of messages deleted.
+     */
+    public int deleteBefore(long cutoff) {
+        return getWritableDatabase().delete("messages", "date <= ?", new String[] {String.valueOf(cutoff)});
+    }
+
+    /**
+     * Method to find the messages sent from a phone number within a time window.
+     *
+     * @param number the phone number in any format.
+     * @param from the start of the window (epoch millis, inclusive).
+     * @param to the end of the window (epoch millis, exclusive).
+     * @return the matching messages, newest first.
+     */
+    public List<SingleMessage> findByNumber(String number, long from, long to) {
+        return query("SELECT " + COLUMNS + " FROM messages WHERE number_key = ? AND date >= ? AND date < ? ORDER BY date DESC",
+                new String[] {NumberKey.of(number), String.valueOf(from), String.valueOf(to)});
+    }
+
+    /**
+     * Method to find every message within a time window.
+     *
+     * @param from the start of the window (epoch millis, inclusive).
+     * @param to the end of the window (epoch millis, exclusive).
+     * @return the matching messages, newest first.
+     */
+    public List<SingleMessage> findBetween(long from, long to) {
+        return query("SELECT " + COLUMNS + " FROM messages WHERE date >= ? AND date < ? ORDER BY date DESC",
+                new String[] {String.valueOf(from), String.valueOf(to)});
+    }
+
+    /**
+     * Method to find the messages whose body contains every word of some text. A word still being typed at the end
+     * of the text is matched as a prefix. Quotes, hyphens and words such as OR are searched for as typed rather than
+     * read as full text operators.
+     *
+     * @param text the text to search for, for example a name or a table number.
+     * @param limit the most messages to return.
+     * @return the matching messages, newest first.
+     */
+    public List<SingleMessage> search(String text, int limit) {
+        String match = toMatchQuery(text);
+        if (match.isEmpty())
+            return new ArrayList<SingleMessage>();
+
+        return query("SELECT m._id, m.address, m.date, m.body FROM messages_fts f " +
+                        "JOIN messages m ON m._id = f.docid WHERE f.body MATCH ? ORDER BY m.date DESC LIMIT " + limit,
+                new String[] {match});
+    }
+
+    /**
+     * Method to turn text as typed into a full text query which matches every word in it.
+     * Only runs of letters and digits are kept, which is all the default tokenizer indexes. Each is quoted and lower
+     * cased, so nothing in the text can be read as an operator.
+     *
+     * @param text the text as typed.
+     * @return the query, or an empty string if the text has no words.
+     */
+    static String toMatchQuery(String text) {
+        StringBuilder match = new StringBuilder();
+        int length = text == null ? 0 : text.length();
+        int wordStart = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && wordStart < 0) {
+                wordStart = i;
+            }
+            else if (!wordChar && wordStart >= 0) {
+                if (match.length() > 0)
+                    match.append(' ');
+                match.append('"').append(text.substring(wordStart, i).toLowerCase(Locale.ROOT));
+                //the last word may still be being typed.
+                match.append(i == length ? "*\"" : "\"");
+                wordStart = -1;
+            }
+        }
+        return match.toString();
+    }
+
+    /**
+     * Method to find the newest messages after a cutoff.
+     *
+     * @param cutoff the oldest time (epoch millis) which must not be returned.
+     * @param limit the most messages to return.
+     * @return the messages, newest first by _id as the inbox is listed.
+     */
+    public List<SingleMessage> findNewest(long cutoff, int limit) {
+        return query("SELECT " + COLUMNS + " FROM messages WHERE date > ? ORDER BY _id DESC LIMIT " + limit,
+                new String[] {String.valueOf(cutoff)});
+    }
+
+    /**
+     * Method to write every message sent at or after a time as CSV, straight from the database without holding them in
+     * memory.
+     *
+     * @param sinceMillis the time (epoch millis) the messages must be sent at or after.
+     * @param newestFirst whether to write the newest message first rather than the oldest.
+     * @param writer the writer to write each message to.
+     * @param deviceId the id of this device.
+     * @return the number of messages written.
+     * @throws IOException if a message could not be written.
+     */
+    public int writeCsv(long sinceMillis, boolean newestFirst, CsvRecordWriter writer, String deviceId)
+            throws IOException {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + COLUMNS + " FROM messages WHERE date >= ? ORDER BY date " +
+                (newestFirst ? "DESC" : "ASC"), new String[] {String.valueOf(sinceMillis)});
+        int written = 0;
+        try {
+            while (cursor.moveToNext()) {
+                writer.writeMessage(new SingleMessage(cursor.getLong(0), cursor.getString(1),
+                        cursor.getLong(2), cursor.getString(3)), deviceId);
+                written++;
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return written;
+    }
+
+    /**
+     * Method to run a query returning messages.
+     *
+     * @param sql the query, selecting _id, address, date and body in that order.
+     * @param selectionArgs the arguments for the query.
+     * @return the messages returned.
+     */
+    private List<SingleMessage> query(String sql, String[] selectionArgs) {
+        List<SingleMessage> messages = new ArrayList<SingleMessage>();
+        Cursor cursor = getReadableDatabase().rawQuery(sql, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                messages.add(new SingleMessage(cursor.getLong(0), cursor.getString(1),
+                        cursor.getLong(2), cursor.getString(3)));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return messages;
+    }
+
+    /**
+     * Class which collects messages and adds them to the database a batch at a time.
+     */
+    public class BatchInserter implements MessageConsumer {
+        private final int batchSize;
+        private final List<SingleMessage> batch;
+
+        private BatchInserter(int batchSize) {
+            this.batchSize = batchSize;
+            this.batch = new ArrayList<SingleMessage>(batchSize);
+        }
+
+        @Override
+        public void accept(SingleMessage message) {
+            batch.add(message);
+            if (batch.size() == batchSize)
+                flush();
+        }
+
+        /**
+         * Method to add any messages collected since the last batch.
+         */
+        public void flush() {
+            insertAll(batch);
+            batch.clear();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+}
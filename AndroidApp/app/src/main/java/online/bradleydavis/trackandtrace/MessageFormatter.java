@@ -0,0 +1,79 @@
+package online.bradleydavis.trackandtrace;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Class which formats message timestamps for display and export.
+ * SimpleDateFormat is not thread safe, so each thread gets its own formatters.
+ * Messages arrive in bursts, so the last day and minute formatted are cached and reused.
+ *
+ * @author Bradley Davis
+ */
+final class MessageFormatter {
+    private static final ThreadLocal<MessageFormatter> FORMATTERS = new ThreadLocal<MessageFormatter>() {
+        @Override
+        protected MessageFormatter initialValue() {
+            return new MessageFormatter();
+        }
+    };
+
+    private final SimpleDateFormat timeConverter = new SimpleDateFormat("HH:mm", Locale.ENGLISH);
+    private final SimpleDateFormat dateConverter = new SimpleDateFormat("dd/MM/yyyy", Locale.ENGLISH);
+    private final Calendar calendar = Calendar.getInstance();
+    private long cachedDayStart = Long.MAX_VALUE;
+    private long cachedDayEnd = Long.MIN_VALUE;
+    private String cachedDate;
+    private long cachedMinuteStart = Long.MAX_VALUE;
+    private String cachedTime;
+
+    private MessageFormatter() {
+    }
+
+    /**
+     * Method to format the date of a timestamp as dd/MM/yyyy.
+     *
+     * @param timestamp the time (epoch millis).
+     * @return the formatted date.
+     */
+    static String formatDate(long timestamp) {
+        return FORMATTERS.get().date(timestamp);
+    }
+
+    /**
+     * Method to format the time of a timestamp as HH:mm.
+     *
+     * @param timestamp the time (epoch millis).
+     * @return the formatted time.
+     */
+    static String formatTime(long timestamp) {
+        return FORMATTERS.get().time(timestamp);
+    }
+
+    private String date(long timestamp) {
+        if (timestamp < cachedDayStart || timestamp >= cachedDayEnd) {
+            calendar.setTimeInMillis(timestamp);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            cachedDayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DATE, 1);
+            cachedDayEnd = calendar.getTimeInMillis();
+            cachedDate = dateConverter.format(new Date(timestamp));
+        }
+        return cachedDate;
+    }
+
+    private String time(long timestamp) {
+        //time zones are offset by whole minutes, so a minute in epoch time is a minute on the clock.
+        long minuteStart = timestamp - Math.floorMod(timestamp, 60000L);
+        if (minuteStart != cachedMinuteStart) {
+            cachedMinuteStart = minuteStart;
+            cachedTime = timeConverter.format(new Date(timestamp));
+        }
+        return cachedTime;
+    }
+}
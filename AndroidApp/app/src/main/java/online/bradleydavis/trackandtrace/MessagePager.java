@@ -0,0 +1,249 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class which loads the inbox a page at a time on a background thread, newest message first.
+ * Pages are fetched with keyset queries on _id so only the rows being shown are read. Once the shared message cache
+ * holds the whole window, pages are taken from it instead and the inbox is not read at all.
+ * Results are handed back to the UI thread through a listener.
+ *
+ * @author Bradley Davis
+ */
+public class MessagePager {
+    public static final int PAGE_SIZE = 50;
+
+    private final InboxReader inboxReader;
+    private final MessageCache messageCache = MessageCache.getInstance();
+    private final MessageDatabase messageDatabase;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //the following are only touched on the UI thread.
+    private long oldestLoadedId = Long.MAX_VALUE;
+    private long newestLoadedId = -1;
+    private boolean loadingPage = false;
+    private boolean exhausted = false;
+
+    /**
+     * Interface through which loaded messages are delivered on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * Called with the messages saved by the last session, to be shown until the first page is loaded.
+         *
+         * @param saved the messages, newest first.
+         */
+        void onSavedMessages(List<SingleMessage> saved);
+
+        /**
+         * Called when an older page of messages has been loaded. The first page is always delivered, even if empty,
+         * so that any saved messages being shown can be replaced.
+         *
+         * @param page the messages, newest first.
+         */
+        void onPageLoaded(List<SingleMessage> page);
+
+        /**
+         * Called when messages newer than everything loaded so far have arrived.
+         *
+         * @param newMessages the messages, oldest first, so that each can be inserted at the top of the list in turn.
+         */
+        void onNewMessages(List<SingleMessage> newMessages);
+    }
+
+    /**
+     * Constructor for the pager.
+     *
+     * @param context Application context.
+     * @param listener the listener to deliver messages to.
+     */
+    public MessagePager(Context context, Listener listener) {
+        this.inboxReader = new InboxReader(context.getContentResolver());
+        this.messageDatabase = MessageDatabase.getInstance(context);
+        this.listener = listener;
+    }
+
+    /**
+     * Method to show the newest messages saved by the last session while the first page is read from the inbox.
+     * These come from the message database, which is much quicker to open than the inbox. Nothing is loaded if
+     * the message cache already holds the window, as the first page will then be ready straight away.
+     * Must be called on the UI thread, before the first page is requested.
+     */
+    public void loadSavedMessages() {
+        if (messageCache.isComplete())
+            return;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<SingleMessage> saved = messageDatabase.findNewest(RetentionEngine.getCutoff(), PAGE_SIZE);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        //the inbox has already answered.
+                        if (newestLoadedId >= 0 || saved.isEmpty())
+                            return;
+                        listener.onSavedMessages(saved);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Method to load the next (older) page of messages if one is not already being loaded.
+     * Must be called on the UI thread.
+     */
+    public void loadNextPage() {
+        if (loadingPage || exhausted)
+            return;
+        loadingPage = true;
+
+        final long before = oldestLoadedId;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<SingleMessage> page = messageCache.isComplete() ?
+                        messageCache.getBefore(before, PAGE_SIZE) :
+                        queryMessages("_id < ?", new String[] {String.valueOf(before)},
+                                InboxReader.ORDER_NEWEST_FIRST, PAGE_SIZE);
+                final long[] bounds = getBounds(page);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingPage = false;
+                        if (page.size() < PAGE_SIZE)
+                            exhausted = true;
+                        if (page.isEmpty() && before != Long.MAX_VALUE)
+                            return;
+
+                        //the first row of a descending page is the newest, the last is the oldest.
+                        if (!page.isEmpty()) {
+                            newestLoadedId = Math.max(newestLoadedId, bounds[0]);
+                            oldestLoadedId = bounds[1];
+                        }
+                        listener.onPageLoaded(page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Method to load any messages which are newer than the newest one already loaded.
+     * If nothing has been loaded yet, the first page is loaded instead.
+     * Must be called on the UI thread.
+     */
+    public void loadNewMessages() {
+        if (newestLoadedId < 0) {
+            //an empty inbox is not exhausted once a message has arrived.
+            if (!loadingPage)
+                exhausted = false;
+            loadNextPage();
+            return;
+        }
+
+        final long after = newestLoadedId;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<SingleMessage> newMessages = messageCache.isComplete() ?
+                        messageCache.getAfter(after) :
+                        queryMessages("_id > ?", new String[] {String.valueOf(after)},
+                                InboxReader.ORDER_OLDEST_FIRST, 0);
+                final long[] bounds = getBounds(newMessages);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        //ignore anything a previous request has already delivered.
+                        if (newMessages.isEmpty() || bounds[1] <= newestLoadedId)
+                            return;
+
+                        List<SingleMessage> unseen = newMessages;
+                        if (bounds[0] <= newestLoadedId) {
+                            unseen = new ArrayList<SingleMessage>();
+                            for (SingleMessage message : newMessages) {
+                                if (message.getId() > newestLoadedId)
+                                    unseen.add(message);
+                            }
+                        }
+                        newestLoadedId = bounds[1];
+                        listener.onNewMessages(unseen);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Method to add a batch of messages which have just been received without querying the inbox.
+     * If nothing has been loaded yet, or the batch does not directly follow the newest message loaded,
+     * the inbox is queried instead so that nothing is missed.
+     * Must be called on the UI thread.
+     *
+     * @param received the messages which have just been received, in the order they were added to the inbox.
+     */
+    public void addReceivedMessages(List<SingleMessage> received) {
+        long expectedId = newestLoadedId + 1;
+        for (SingleMessage message : received) {
+            if (newestLoadedId < 0 || message.getId() != expectedId++) {
+                loadNewMessages();
+                return;
+            }
+        }
+        if (received.isEmpty())
+            return;
+
+        newestLoadedId = received.get(received.size() - 1).getId();
+        listener.onNewMessages(received);
+    }
+
+    /**
+     * Method to stop the background thread. No further results will be delivered.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Method to read messages from the inbox within the retention window, adding them to the cache as they are read.
+     *
+     * @param selection the selection to apply.
+     * @param selectionArgs the arguments for the selection.
+     * @param sortOrder the order to read the rows in.
+     * @param limit the maximum number of rows to read, or 0 for no limit.
+     * @return the messages in the order they were read.
+     */
+    private List<SingleMessage> queryMessages(String selection, String[] selectionArgs, String sortOrder, int limit) {
+        final List<SingleMessage> messages = new ArrayList<SingleMessage>();
+        inboxReader.read(selection, selectionArgs, sortOrder, limit, messageCache, new MessageConsumer() {
+            @Override
+            public void accept(SingleMessage message) {
+                messages.add(message);
+            }
+        });
+        return messages;
+    }
+
+    /**
+     * Method to get the _id of the first and last messages in a list.
+     *
+     * @param messages the messages.
+     * @return the _id of the first and last messages, or -1 for both if there are none.
+     */
+    private static long[] getBounds(List<SingleMessage> messages) {
+        if (messages.isEmpty())
+            return new long[] {-1, -1};
+        return new long[] {messages.get(0).getId(), messages.get(messages.size() - 1).getId()};
+    }
+}
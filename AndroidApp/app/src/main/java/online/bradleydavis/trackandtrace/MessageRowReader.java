@@ -0,0 +1,50 @@
+package online.bradleydavis.trackandtrace;
+
+import android.database.Cursor;
+
+/**
+ * Class which decodes rows of the SMS provider into messages.
+ * Column indexes are looked up once per cursor and the numeric columns are read directly as longs.
+ *
+ * @author Bradley Davis
+ */
+public class MessageRowReader {
+    public static final String[] PROJECTION = new String[] {"_id", "address", "body", "date"};
+
+    private final int indexID;
+    private final int indexAddress;
+    private final int indexBody;
+    private final int indexTimeStamp;
+
+    /**
+     * Constructor which resolves the columns of the cursor.
+     *
+     * @param cursor the cursor which will be read.
+     */
+    public MessageRowReader(Cursor cursor) {
+        indexID = cursor.getColumnIndex("_id");
+        indexAddress = cursor.getColumnIndex("address");
+        indexBody = cursor.getColumnIndex("body");
+        indexTimeStamp = cursor.getColumnIndex("date");
+    }
+
+    /**
+     * Method to check whether or not the cursor has all of the columns needed.
+     *
+     * @return whether or not messages can be read from the cursor.
+     */
+    public boolean isValid() {
+        return indexID >= 0 && indexAddress >= 0 && indexBody >= 0 && indexTimeStamp >= 0;
+    }
+
+    /**
+     * Method to decode the current row.
+     *
+     * @param cursor the cursor positioned on a row.
+     * @return the message on that row.
+     */
+    public SingleMessage read(Cursor cursor) {
+        return new SingleMessage(cursor.getLong(indexID), cursor.getString(indexAddress),
+                cursor.getLong(indexTimeStamp), cursor.getString(indexBody));
+    }
+}
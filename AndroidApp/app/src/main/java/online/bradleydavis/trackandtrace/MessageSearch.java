@@ -0,0 +1,154 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class which runs as-you-type searches over the retention window on a background thread.
+ * Each change to the query is held back until typing pauses, so only the query left showing is run.
+ * The search index is filled the first time a search is made, from the shared message cache if it holds the whole
+ * window and from the inbox otherwise, and is then kept up to date as messages arrive and expire.
+ * Results are handed back to the UI thread through a listener.
+ *
+ * @author Bradley Davis
+ */
+public class MessageSearch {
+    public static final long DEBOUNCE_MILLIS = 150;
+
+    private final InboxReader inboxReader;
+    private final MessageCache messageCache = MessageCache.getInstance();
+    private final MessageSearchIndex index = new MessageSearchIndex();
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //bumped on the UI thread by every change, so that stale searches are skipped and their results dropped.
+    private volatile int generation = 0;
+    private String pendingQuery = "";
+    //only touched on the background thread.
+    private boolean loaded = false;
+
+    private final Runnable runSearch = new Runnable() {
+        @Override
+        public void run() {
+            final String query = pendingQuery;
+            final int searched = generation;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (searched != generation)
+                        return;
+
+                    load();
+                    long start = Metrics.startTimer();
+                    final List<SingleMessage> results = index.search(query, MessageSearchIndex.DEFAULT_LIMIT);
+                    Metrics.stopTimer(Metrics.UI_SEARCH, start);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (searched == generation)
+                                listener.onResults(query, results);
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    /**
+     * Interface through which search results are delivered on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * Called with the results of the latest query.
+         *
+         * @param query the query searched for. Blank once the search has been cleared.
+         * @param results the matching messages, newest first. Empty when the query is blank.
+         */
+        void onResults(String query, List<SingleMessage> results);
+    }
+
+    /**
+     * Constructor for the search.
+     *
+     * @param context Application context.
+     * @param listener the listener to deliver results to.
+     */
+    public MessageSearch(Context context, Listener listener) {
+        this.inboxReader = new InboxReader(context.getContentResolver());
+        this.listener = listener;
+    }
+
+    /**
+     * Method to search for a query once typing pauses. Clearing the query is delivered straight away.
+     * Must be called on the UI thread.
+     *
+     * @param query the text typed so far.
+     */
+    public void search(String query) {
+        mainHandler.removeCallbacks(runSearch);
+        generation++;
+        pendingQuery = query;
+        if (query.trim().isEmpty()) {
+            listener.onResults(query, new ArrayList<SingleMessage>());
+            return;
+        }
+        mainHandler.postDelayed(runSearch, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Method to add messages which have just arrived to the index. Nothing needs doing until the index is loaded,
+     * as loading reads them along with everything else.
+     *
+     * @param received the messages which have arrived.
+     */
+    public void addMessages(final List<SingleMessage> received) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (loaded)
+                    index.addAll(received);
+            }
+        });
+    }
+
+    /**
+     * Method to remove messages from the index once they are over 21 days old.
+     */
+    public void removeExpiredMessages() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (loaded)
+                    index.removeBefore(RetentionEngine.getCutoff());
+            }
+        });
+    }
+
+    /**
+     * Method to stop the background thread. No further results will be delivered.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Method to fill the index with the window the first time it is needed. Runs on the background thread.
+     */
+    private void load() {
+        if (loaded)
+            return;
+        if (messageCache.isComplete())
+            index.addAll(messageCache.getAfter(-1));
+        else
+            inboxReader.readWindow(InboxReader.ORDER_OLDEST_FIRST, index);
+        loaded = true;
+    }
+}
@@ -0,0 +1,380 @@
+package online.bradleydavis.trackandtrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Class which answers as-you-type searches over the messages in the retention window, so staff can find a visitor by
+ * part of their number or a word they sent without scrolling.
+ * Numbers are reduced to their digits and held sorted twice, once as written for prefixes and once reversed for the
+ * last few digits, so the numbers matching what has been typed are a single range of each. A trie would answer the
+ * same queries, but needs a node per digit and so far more memory for a window of distinct numbers. The words of
+ * every message and sender are held sorted in the same way, so the word being typed can be matched as a prefix.
+ * Messages can be added as they arrive. Removing expired messages rebuilds the index, which only happens when the
+ * retention engine runs. This has no Android dependencies so that it can be tested on the desktop.
+ *
+ * @author Bradley Davis
+ */
+public class MessageSearchIndex implements MessageConsumer {
+    public static final int DEFAULT_LIMIT = 200;
+    //past this many numbers, matching every message from the newest down is quicker than gathering them all.
+    private static final int MAX_NUMBERS_PER_QUERY = 2000;
+
+    private static final Comparator<SingleMessage> ID_ORDER = new Comparator<SingleMessage>() {
+        @Override
+        public int compare(SingleMessage a, SingleMessage b) {
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    private final List<SingleMessage> messages = new ArrayList<SingleMessage>();
+    private final List<String> numberDigits = new ArrayList<String>();
+    private final Set<Long> ids = new HashSet<Long>();
+    //a number's entry in each map shares the same postings.
+    private final TreeMap<String, Postings> numbers = new TreeMap<String, Postings>();
+    private final TreeMap<String, Postings> reversedNumbers = new TreeMap<String, Postings>();
+    //kept apart from the numbers, as a key can be the digits of another number.
+    private final TreeMap<String, Postings> numberKeys = new TreeMap<String, Postings>();
+    private final TreeMap<String, Postings> tokens = new TreeMap<String, Postings>();
+    //messages are nearly always added oldest first, so positions are usually in _id order as well.
+    private boolean inIdOrder = true;
+
+    @Override
+    public void accept(SingleMessage message) {
+        add(message);
+    }
+
+    /**
+     * Method to add a message to the index. Messages which are already indexed are ignored.
+     *
+     * @param message the message to add.
+     */
+    public synchronized void add(SingleMessage message) {
+        if (!ids.add(message.getId()))
+            return;
+
+        int position = messages.size();
+        if (position > 0 && message.getId() < messages.get(position - 1).getId())
+            inIdOrder = false;
+        messages.add(message);
+
+        String digits = getDigits(message.getPhoneNumber());
+        numberDigits.add(digits);
+        if (!digits.isEmpty()) {
+            Postings postings = numbers.get(digits);
+            if (postings == null) {
+                numbers.put(digits, postings = new Postings());
+                reversedNumbers.put(reverse(digits), postings);
+            }
+            postings.add(position);
+            //a national number and its international form share a key, so either finds the other.
+            String key = NumberKey.of(digits);
+            if (!key.equals(digits))
+                addPosting(numberKeys, key, position);
+        }
+
+        //a word used twice in one message only needs to find it once.
+        Set<String> words = new HashSet<String>();
+        addTokens(message.getPhoneNumber(), words);
+        addTokens(message.getMessageContent(), words);
+        for (String word : words)
+            addPosting(tokens, word, position);
+    }
+
+    private static void addPosting(Map<String, Postings> index, String key, int position) {
+        Postings postings = index.get(key);
+        if (postings == null)
+            index.put(key, postings = new Postings());
+        postings.add(position);
+    }
+
+    /**
+     * Method to add several messages to the index.
+     *
+     * @param messages the messages to add.
+     */
+    public synchronized void addAll(Collection<SingleMessage> messages) {
+        for (SingleMessage message : messages)
+            add(message);
+    }
+
+    /**
+     * Method to remove every message sent before the cutoff. The index is rebuilt from the messages left if any
+     * were removed, as the sorted numbers and words only ever grow.
+     *
+     * @param cutoffMillis the oldest time (epoch millis) which must be kept.
+     * @return the number of messages removed.
+     */
+    public synchronized int removeBefore(long cutoffMillis) {
+        List<SingleMessage> kept = new ArrayList<SingleMessage>(messages.size());
+        for (SingleMessage message : messages) {
+            if (message.getTimestamp() > cutoffMillis)
+                kept.add(message);
+        }
+        int removed = messages.size() - kept.size();
+        if (removed == 0)
+            return 0;
+
+        Collections.sort(kept, ID_ORDER);
+        inIdOrder = true;
+        messages.clear();
+        numberDigits.clear();
+        ids.clear();
+        numbers.clear();
+        reversedNumbers.clear();
+        numberKeys.clear();
+        tokens.clear();
+        addAll(kept);
+        return removed;
+    }
+
+    /**
+     * Method to get the number of messages in the index.
+     *
+     * @return the number of messages.
+     */
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Method to find the messages matching what has been typed so far.
+     * A query of only digits and the punctuation found in phone numbers matches numbers which start or end with
+     * those digits. Anything else is split into words, each of which must be in the message or its sender,
+     * with the last word matched as a prefix as it may not have been finished.
+     *
+     * @param query the text typed.
+     * @param limit the most messages to return.
+     * @return the matching messages, newest (largest _id) first as in the list. Empty if the query is blank.
+     */
+    public synchronized List<SingleMessage> search(String query, int limit) {
+        if (query == null || query.trim().isEmpty() || limit <= 0)
+            return new ArrayList<SingleMessage>();
+
+        if (!isNumberQuery(query))
+            return selectNewest(findWords(query), limit);
+
+        String digits = getDigits(query);
+        BitSet matches = findNumbers(digits);
+        return selectNewest(matches != null ? matches : scanNumbers(digits, limit), limit);
+    }
+
+    /**
+     * Method to find the messages of every number starting or ending with some digits.
+     *
+     * @param digits the digits typed.
+     * @return the positions of the matching messages, or null if too many numbers match to gather them quickly.
+     */
+    private BitSet findNumbers(String digits) {
+        BitSet matches = new BitSet(messages.size());
+        int budget = addPrefixed(numbers, digits, matches, MAX_NUMBERS_PER_QUERY);
+        budget = addPrefixed(numberKeys, digits, matches, budget);
+        budget = addPrefixed(reversedNumbers, reverse(digits), matches, budget);
+        //someone typing the national form of an international number has a leading zero the key does not.
+        if (digits.length() > 1 && digits.charAt(0) == '0') {
+            budget = addPrefixed(numbers, digits.substring(1), matches, budget);
+            budget = addPrefixed(numberKeys, digits.substring(1), matches, budget);
+        }
+        return budget < 0 ? null : matches;
+    }
+
+    /**
+     * Method to find the messages of numbers starting or ending with some digits by checking each message, newest
+     * first, for when so many numbers match that most messages will. This matches exactly what findNumbers would.
+     *
+     * @param digits the digits typed.
+     * @param limit the most messages needed.
+     * @return the positions of the matching messages, which stop at the limit when positions are in _id order.
+     */
+    private BitSet scanNumbers(String digits, int limit) {
+        BitSet matches = new BitSet(messages.size());
+        String national = digits.length() > 1 && digits.charAt(0) == '0' ? digits.substring(1) : null;
+        int found = 0;
+        for (int position = messages.size() - 1; position >= 0 && !(inIdOrder && found == limit); position--) {
+            String number = numberDigits.get(position);
+            if (number.isEmpty())
+                continue;
+
+            int keyStart = Math.max(0, number.length() - NumberKey.LENGTH);
+            if (number.startsWith(digits) || number.startsWith(digits, keyStart) || number.endsWith(digits) ||
+                    (national != null && (number.startsWith(national) || number.startsWith(national, keyStart)))) {
+                matches.set(position);
+                found++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Method to find the messages containing every word typed, the last as a prefix.
+     *
+     * @param query the text typed.
+     * @return the positions of the matching messages.
+     */
+    private BitSet findWords(String query) {
+        List<String> words = new ArrayList<String>();
+        addTokens(query, words);
+        boolean finished = !Character.isLetterOrDigit(query.charAt(query.length() - 1));
+
+        BitSet matches = null;
+        for (int i = 0; i < words.size(); i++) {
+            BitSet found = new BitSet(messages.size());
+            String word = words.get(i);
+            if (i < words.size() - 1 || finished) {
+                Postings postings = tokens.get(word);
+                if (postings != null)
+                    postings.addTo(found);
+            }
+            else
+                addPrefixed(tokens, word, found, Integer.MAX_VALUE);
+
+            if (matches == null)
+                matches = found;
+            else
+                matches.and(found);
+            if (matches.isEmpty())
+                break;
+        }
+        return matches == null ? new BitSet() : matches;
+    }
+
+    /**
+     * Method to add the postings of every key starting with a prefix. The keys are sorted, so they are one range.
+     *
+     * @param index the index to look in.
+     * @param prefix the prefix.
+     * @param matches the set to add the positions to.
+     * @param budget the most keys to look at.
+     * @return the budget left, or -1 if it ran out before the end of the range.
+     */
+    private static int addPrefixed(TreeMap<String, Postings> index, String prefix, BitSet matches, int budget) {
+        if (budget < 0)
+            return budget;
+        for (Postings postings : index.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            if (budget-- == 0)
+                return -1;
+            postings.addTo(matches);
+        }
+        return budget;
+    }
+
+    /**
+     * Method to pick the newest of the matching messages. When positions are in _id order these are simply the last
+     * positions set, otherwise the matches are passed through a heap rather than all being sorted.
+     *
+     * @param matches the positions of the matching messages.
+     * @param limit the most messages to return.
+     * @return the newest matching messages, newest first.
+     */
+    private List<SingleMessage> selectNewest(BitSet matches, int limit) {
+        List<SingleMessage> selected = new ArrayList<SingleMessage>(Math.min(limit, matches.cardinality()));
+        if (inIdOrder) {
+            for (int position = matches.length() - 1; position >= 0 && selected.size() < limit;
+                 position = matches.previousSetBit(position - 1))
+                selected.add(messages.get(position));
+            return selected;
+        }
+
+        PriorityQueue<SingleMessage> newest = new PriorityQueue<SingleMessage>(Math.min(limit, 1024), ID_ORDER);
+        for (int position = matches.nextSetBit(0); position >= 0; position = matches.nextSetBit(position + 1)) {
+            SingleMessage message = messages.get(position);
+            if (newest.size() < limit)
+                newest.add(message);
+            else if (ID_ORDER.compare(message, newest.peek()) > 0) {
+                newest.poll();
+                newest.add(message);
+            }
+        }
+        while (!newest.isEmpty())
+            selected.add(newest.poll());
+        Collections.reverse(selected);
+        return selected;
+    }
+
+    /**
+     * Method to check whether or not a query is part of a phone number.
+     *
+     * @param query the text typed.
+     * @return true if the query has a digit and nothing but digits, spaces, +, -, ( and ).
+     */
+    static boolean isNumberQuery(String query) {
+        boolean digit = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c >= '0' && c <= '9')
+                digit = true;
+            else if (c != ' ' && c != '+' && c != '-' && c != '(' && c != ')')
+                return false;
+        }
+        return digit;
+    }
+
+    private static String getDigits(String text) {
+        if (text == null)
+            return "";
+
+        StringBuilder digits = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+        }
+        return digits.toString();
+    }
+
+    private static String reverse(String digits) {
+        return new StringBuilder(digits).reverse().toString();
+    }
+
+    /**
+     * Method to split text into lower case words of letters and digits.
+     *
+     * @param text the text to split, which may be null.
+     * @param words the collection to add the words to.
+     */
+    static void addTokens(String text, Collection<String> words) {
+        if (text == null)
+            return;
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letterOrDigit = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letterOrDigit && start < 0)
+                start = i;
+            else if (!letterOrDigit && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Class which holds a growing list of message positions, in the order they were added.
+     */
+    private static class Postings {
+        private int[] positions = new int[2];
+        private int count = 0;
+
+        void add(int position) {
+            if (count == positions.length)
+                positions = Arrays.copyOf(positions, count * 2);
+            positions[count++] = position;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < count; i++)
+                set.set(positions[i]);
+        }
+    }
+}
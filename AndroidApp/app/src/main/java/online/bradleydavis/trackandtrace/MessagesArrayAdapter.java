@@ -14,34 +14,63 @@ import androidx.annotation.Nullable;
 
 /**
  * ArrayAdapter class which handles displaying the text messages to the user.
+ * Rows are recycled and their child views cached so that scrolling does not inflate or search the layout.
  *
  * @author Bradley Davis
  */
-class MessagesArrayAdapter extends ArrayAdapter {
+class MessagesArrayAdapter extends ArrayAdapter<SingleMessage> {
+    private final LayoutInflater inflater;
 
     public MessagesArrayAdapter(@NonNull Context context, ArrayList<SingleMessage> list) {
         super(context, 0, list);
+        inflater = LayoutInflater.from(context);
     }
 
     @NonNull
     @Override
     public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-        View formattedMessage = LayoutInflater.from(super.getContext()).inflate(R.layout.single_message, parent, false);
+        View formattedMessage = convertView;
+        ViewHolder holder;
+        if (formattedMessage == null) {
+            formattedMessage = inflater.inflate(R.layout.single_message, parent, false);
+            holder = new ViewHolder(formattedMessage);
+            formattedMessage.setTag(holder);
+        }
+        else {
+            holder = (ViewHolder)formattedMessage.getTag();
+        }
 
-        SingleMessage currentMessage = (SingleMessage)super.getItem(position);
-
-        TextView phoneNumber = (TextView)formattedMessage.findViewById(R.id.PhoneNumber);
-        phoneNumber.setText(currentMessage.getPhoneNumber());
-
-        TextView date = (TextView)formattedMessage.findViewById(R.id.Date);
-        date.setText(currentMessage.getDate());
+        holder.bind(super.getItem(position));
+        return formattedMessage;
+    }
 
-        TextView time = (TextView)formattedMessage.findViewById(R.id.Time);
-        time.setText(currentMessage.getTime());
+    /**
+     * Class which caches the child views of a single message row.
+     */
+    static class ViewHolder {
+        final TextView phoneNumber;
+        final TextView date;
+        final TextView time;
+        final TextView messageBody;
 
-        TextView messageBody = (TextView)formattedMessage.findViewById(R.id.MessageBody);
-        messageBody.setText(currentMessage.getMessageContent());
+        ViewHolder(View formattedMessage) {
+            phoneNumber = (TextView)formattedMessage.findViewById(R.id.PhoneNumber);
+            date = (TextView)formattedMessage.findViewById(R.id.Date);
+            time = (TextView)formattedMessage.findViewById(R.id.Time);
+            messageBody = (TextView)formattedMessage.findViewById(R.id.MessageBody);
+        }
 
-        return formattedMessage;
+        /**
+         * Method to show a message in the cached views.
+         * The display strings are formatted once per message and cached, so rebinding only sets text.
+         *
+         * @param currentMessage the message to show.
+         */
+        void bind(SingleMessage currentMessage) {
+            phoneNumber.setText(currentMessage.getPhoneNumber());
+            date.setText(currentMessage.getDate());
+            time.setText(currentMessage.getTime());
+            messageBody.setText(currentMessage.getMessageContent());
+        }
     }
 }
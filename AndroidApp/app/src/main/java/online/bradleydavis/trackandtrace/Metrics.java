@@ -0,0 +1,279 @@
+package online.bradleydavis.trackandtrace;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class which collects counters, timers and histograms from the hot paths of the application.
+ * Collection is off by default. While it is off every method returns after a single volatile read,
+ * so the hooks can stay in place in release builds.
+ * Timers are histograms of elapsed microseconds. Histograms use power of two buckets, so percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ *
+ * @author Bradley Davis
+ */
+public final class Metrics {
+    //timers, in microseconds.
+    public static final String EXPORT_UPDATE = "export.update";
+    public static final String EXPORT_MESSAGE = "export.message";
+    public static final String PROVIDER_QUERY = "provider.query";
+    public static final String RETENTION_RUN = "retention.run";
+    public static final String BUNDLE_UPDATE = "bundle.update";
+    public static final String RECEIVER_SAVE = "receiver.save";
+    public static final String UI_REFRESH = "ui.refresh";
+    public static final String UI_REBUILD = "ui.rebuild";
+    public static final String STARTUP_FIRST_FRAME = "startup.first_frame";
+    public static final String STARTUP_FULL_LIST = "startup.full_list";
+    public static final String UI_SEARCH = "ui.search";
+    public static final String STORAGE_PUBLISH = "storage.publish";
+    public static final String STORAGE_REMOVE = "storage.remove";
+
+    //histograms.
+    public static final String EXPORT_ROWS = "export.rows";
+
+    //counters.
+    public static final String ROWS_SCANNED = "export.rows_scanned";
+    public static final String MESSAGES_WRITTEN = "export.messages_written";
+    public static final String MESSAGES_SKIPPED = "export.messages_skipped";
+    public static final String WRITE_FAILURES = "export.write_failures";
+    public static final String FILES_WRITTEN = "export.files_written";
+    public static final String MEDIA_SCANS = "media.scans";
+    public static final String MEDIA_SCAN_PATHS = "media.scan_paths";
+    public static final String MEDIA_STORE_BATCHES = "media.store_batches";
+    public static final String MEDIA_STORE_ENTRIES = "media.store_entries";
+    public static final String MESSAGES_DELETED = "retention.messages_deleted";
+    public static final String FILES_DELETED = "retention.files_deleted";
+    public static final String MESSAGES_RECEIVED = "receiver.messages";
+
+    private static final int BUCKETS = 64;
+    private static volatile boolean enabled = false;
+    private static volatile long enabledAt = 0;
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Method to turn collection on or off. Values already collected are kept.
+     *
+     * @param enable whether or not to collect metrics.
+     */
+    public static void setEnabled(boolean enable) {
+        if (enable && !enabled)
+            enabledAt = System.currentTimeMillis();
+        enabled = enable;
+    }
+
+    /**
+     * Method to check whether or not metrics are being collected.
+     *
+     * @return whether or not collection is on.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Method to add one to a counter.
+     *
+     * @param name the name of the counter.
+     */
+    public static void increment(String name) {
+        if (enabled)
+            counter(name).incrementAndGet();
+    }
+
+    /**
+     * Method to add to a counter.
+     *
+     * @param name the name of the counter.
+     * @param delta the amount to add.
+     */
+    public static void add(String name, long delta) {
+        if (enabled)
+            counter(name).addAndGet(delta);
+    }
+
+    /**
+     * Method to start timing an operation.
+     *
+     * @return the start time to pass to stopTimer, or 0 if collection is off.
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Method to record the time taken since a timer was started.
+     *
+     * @param name the name of the timer.
+     * @param startNanos the value returned by startTimer.
+     */
+    public static void stopTimer(String name, long startNanos) {
+        //a timer started while collection was off is not recorded.
+        if (enabled && startNanos != 0)
+            histogram(name).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Method to record a value in a histogram.
+     *
+     * @param name the name of the histogram.
+     * @param value the value to record. Negative values are recorded as 0.
+     */
+    public static void record(String name, long value) {
+        if (enabled)
+            histogram(name).record(value);
+    }
+
+    /**
+     * Method to get the current value of a counter.
+     *
+     * @param name the name of the counter.
+     * @return the value, or 0 if nothing has been counted.
+     */
+    public static long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Method to get a snapshot of a histogram.
+     *
+     * @param name the name of the histogram or timer.
+     * @return the snapshot, or null if nothing has been recorded.
+     */
+    public static Snapshot getSnapshot(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram == null ? null : histogram.snapshot();
+    }
+
+    /**
+     * Method to discard every value collected so far.
+     */
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+        if (enabled)
+            enabledAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to describe everything collected so far as text, one metric per line in name order.
+     *
+     * @return the description.
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("metrics ").append(enabled ? "enabled" : "disabled");
+        if (enabledAt != 0)
+            builder.append(String.format(Locale.ENGLISH, ", collecting for %ds",
+                    (System.currentTimeMillis() - enabledAt) / 1000));
+        builder.append('\n');
+
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(counters).entrySet())
+            builder.append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+        for (Map.Entry<String, Histogram> histogram : new TreeMap<String, Histogram>(histograms).entrySet())
+            builder.append(histogram.getKey()).append(' ').append(histogram.getValue().snapshot()).append('\n');
+        return builder.toString();
+    }
+
+    private static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    private static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Class describing the values recorded in a histogram at one point in time.
+     */
+    public static class Snapshot {
+        public final long count;
+        public final long sum;
+        public final long min;
+        public final long max;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+
+        Snapshot(long count, long sum, long min, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "count %d mean %d min %d p50 %d p90 %d p99 %d max %d",
+                    count, count == 0 ? 0 : sum / count, min, p50, p90, p99, max);
+        }
+    }
+
+    /**
+     * Class which counts values into power of two buckets. Bucket i holds values below 2^i.
+     */
+    private static class Histogram {
+        private final long[] buckets = new long[BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        private synchronized void record(long value) {
+            if (value < 0)
+                value = 0;
+            buckets[BUCKETS - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        private synchronized Snapshot snapshot() {
+            return new Snapshot(count, sum, count == 0 ? 0 : min, max,
+                    percentile(0.5), percentile(0.9), percentile(0.99));
+        }
+
+        /**
+         * Method to find the bucket a percentile falls in.
+         *
+         * @param fraction the percentile as a fraction.
+         * @return the upper bound of the bucket, capped at the largest value recorded.
+         */
+        private long percentile(double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package online.bradleydavis.trackandtrace;
+
+/**
+ * Class which works out the key a phone number is matched under by the database, the search index and the contact
+ * tracing index. This is the last ten digits, so that national and international forms of the same number match.
+ *
+ * @author Bradley Davis
+ */
+final class NumberKey {
+    static final int LENGTH = 10;
+
+    private NumberKey() {
+    }
+
+    /**
+     * Method to get the key for a phone number.
+     *
+     * @param number the phone number in any format, may be null.
+     * @return the key for the number, empty if it has no digits.
+     */
+    static String of(String number) {
+        if (number == null)
+            return "";
+
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+        }
+        if (digits.length() > LENGTH)
+            return digits.substring(digits.length() - LENGTH);
+        return digits.toString();
+    }
+}
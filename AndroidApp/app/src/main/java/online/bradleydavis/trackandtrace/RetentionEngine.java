@@ -0,0 +1,180 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+/**
+ * Class which enforces the 21 day retention period required by GDPR.
+ * Expired text messages are removed with a single date ranged delete and expired exports by dropping whole day segments.
+ *
+ * @author Bradley Davis
+ */
+public class RetentionEngine {
+    public static final int RETENTION_DAYS = 21;
+    public static final String ACTION_MESSAGES_EXPIRED = "online.bradleydavis.TrackAndTrace.EXPIRED";
+
+    private final Context context;
+    private final DailySegmentStore segmentStore;
+    private final MessageDatabase messageDatabase;
+    private final ExportStorage exportStorage;
+    private volatile Result lastResult;
+
+    /**
+     * Class describing what a single retention run removed.
+     */
+    public static class Result {
+        public final int messagesDeleted;
+        public final int filesDeleted;
+        public final long elapsedMillis;
+        public final long completedAt;
+
+        Result(int messagesDeleted, int filesDeleted, long elapsedMillis, long completedAt) {
+            this.messagesDeleted = messagesDeleted;
+            this.filesDeleted = filesDeleted;
+            this.elapsedMillis = elapsedMillis;
+            this.completedAt = completedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "deleted " + messagesDeleted + " messages and " + filesDeleted + " files in " + elapsedMillis + "ms";
+        }
+    }
+
+    /**
+     * Constructor for the retention engine.
+     *
+     * @param context Application context.
+     * @param segmentStore the store the exported messages are kept in.
+     * @param messageDatabase the searchable copy of the messages.
+     * @param exportStorage where the exports are kept.
+     */
+    public RetentionEngine(Context context, DailySegmentStore segmentStore, MessageDatabase messageDatabase,
+                           ExportStorage exportStorage) {
+        this.context = context;
+        this.segmentStore = segmentStore;
+        this.messageDatabase = messageDatabase;
+        this.exportStorage = exportStorage;
+    }
+
+    /**
+     * Method to get the time before which messages must no longer be kept.
+     *
+     * @return the time 21 days ago (epoch millis).
+     */
+    public static long getCutoff() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DATE, -RETENTION_DAYS);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Method to remove every expired message and export.
+     * This performs I/O and must not be called on the UI thread.
+     *
+     * @return what was removed and how long it took.
+     */
+    public Result run() {
+        long start = System.nanoTime();
+        long cutoff = getCutoff();
+
+        int messagesDeleted = deleteExpiredMessages(cutoff);
+        messageDatabase.deleteBefore(cutoff);
+        MessageCache.getInstance().evictBefore(cutoff);
+        int filesDeleted = deleteExpiredFiles(cutoff);
+
+        Result result = new Result(messagesDeleted, filesDeleted,
+                (System.nanoTime() - start) / 1000000, System.currentTimeMillis());
+        lastResult = result;
+        Log.d("TrackAndTrace Retention", result.toString());
+
+        //let the UI drop any expired messages it is showing.
+        if (messagesDeleted > 0) {
+            LocalBroadcastManager.getInstance(context).sendBroadcast(new Intent(ACTION_MESSAGES_EXPIRED));
+        }
+        return result;
+    }
+
+    /**
+     * Method to get the outcome of the most recent run.
+     *
+     * @return the last result or null if the engine has not run yet.
+     */
+    public Result getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Method to delete every received text message older than the cutoff in one operation.
+     * The provider only accepts deletes on the whole SMS table, so received messages are picked out by type.
+     *
+     * @param cutoff the oldest time (epoch millis) which must be kept.
+     * @return the number of messages deleted.
+     */
+    int deleteExpiredMessages(long cutoff) {
+        ContentResolver contentResolver = context.getContentResolver();
+        try {
+            return contentResolver.delete(Telephony.Sms.CONTENT_URI,
+                    Telephony.Sms.TYPE + " = ? AND " + Telephony.Sms.DATE + " <= ?",
+                    new String[] {String.valueOf(Telephony.Sms.MESSAGE_TYPE_INBOX), String.valueOf(cutoff)});
+        }
+        catch (SecurityException e) {
+            //this fails if we are not the default messaging application.
+            Log.d("TrackAndTrace Retention", String.valueOf(e.getMessage()));
+            return 0;
+        }
+        catch (RuntimeException e) {
+            //anything else means expired messages are being kept, so it is reported as an error. The expired
+            //exports are still removed.
+            Log.e("TrackAndTrace Retention", "Could not delete expired messages", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Method to delete every exported file which has expired.
+     * Segments are named by day so no file needs to be opened. Any one-file-per-message exports left from older
+     * versions carry the date of their message as their last modified time and expire on that. Contact traces are
+     * named after their oldest message and expire with it.
+     *
+     * @param cutoff the oldest time (epoch millis) which must be kept.
+     * @return the number of files deleted.
+     */
+    private int deleteExpiredFiles(long cutoff) {
+        List<File> deleted = segmentStore.deleteBefore(cutoff);
+
+        File[] otherFiles = exportStorage.getDirectory().listFiles();
+        if (otherFiles != null) {
+            for (File file : otherFiles) {
+                long traceOldest = ContactTraceIndex.getTraceOldest(file.getName());
+                boolean expired = traceOldest >= 0 ? traceOldest <= cutoff :
+                        file.getName().endsWith(".txt") && file.lastModified() < cutoff;
+                if (expired && file.delete())
+                    deleted.add(file);
+            }
+        }
+
+        //withdraw every deletion at once.
+        if (!deleted.isEmpty()) {
+            long start = Metrics.startTimer();
+            try {
+                exportStorage.remove(deleted);
+            }
+            catch (IOException e) {
+                Log.d("TrackAndTrace Retention", String.valueOf(e.getMessage()));
+            }
+            Metrics.stopTimer(Metrics.STORAGE_REMOVE, start);
+        }
+        return deleted.size();
+    }
+}
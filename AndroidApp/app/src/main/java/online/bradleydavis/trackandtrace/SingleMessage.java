@@ -2,58 +2,57 @@ package online.bradleydavis.trackandtrace;
 
 /**
  * Simple class to store a text message.
+ * The _id and date are kept as they come from the provider and the display strings are only formatted when first asked for.
  *
  * @author Bradley Davis
  */
 public class SingleMessage {
-    private String phoneNumber;
+    private final long id;
+    private final long timestamp;
+    private final String phoneNumber;
+    private final String messageContent;
     private String date;
     private String time;
-    private String messageContent;
+    private String contentHash;
 
-    public SingleMessage() {
-        phoneNumber = "00000000000";
-        date = "01/01/1970";
-        time = "00:01";
-        messageContent = "No message provided";
-    }
-
-    public SingleMessage(String phoneNumber, String date, String time, String messageContent) {
+    public SingleMessage(long id, String phoneNumber, long timestamp, String messageContent) {
+        this.id = id;
         this.phoneNumber = phoneNumber;
-        this.date = date;
-        this.time = time;
+        this.timestamp = timestamp;
         this.messageContent = messageContent;
     }
 
-    public String getPhoneNumber() {
-        return phoneNumber;
+    public long getId() {
+        return id;
     }
 
-    public void setPhoneNumber(String phoneNumber) {
-        this.phoneNumber = phoneNumber;
+    public long getTimestamp() {
+        return timestamp;
     }
 
-    public String getDate() {
-        return date;
+    public String getPhoneNumber() {
+        return phoneNumber;
     }
 
-    public void setDate(String date) {
-        this.date = date;
+    public String getDate() {
+        if (date == null)
+            date = MessageFormatter.formatDate(timestamp);
+        return date;
     }
 
     public String getTime() {
+        if (time == null)
+            time = MessageFormatter.formatTime(timestamp);
         return time;
     }
 
-    public void setTime(String time) {
-        this.time = time;
-    }
-
     public String getMessageContent() {
         return messageContent;
     }
 
-    public void setMessageContent(String messageContent) {
-        this.messageContent = messageContent;
+    public String getContentHash() {
+        if (contentHash == null)
+            contentHash = ContentHash.of(phoneNumber, timestamp, messageContent);
+        return contentHash;
     }
 }
@@ -1,54 +1,200 @@
 package online.bradleydavis.trackandtrace;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Telephony;
 import android.telephony.SmsMessage;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 /**
  * Class which listens for system broadcasts of text messages being received.
+ * The parts of each delivery are joined into one message per sender, and everything received in a burst is added to
+ * the inbox in one batch on a background thread. The batch is then handed straight to the message cache, the exporter
+ * and the UI, so that none of them has to rescan the inbox to find it.
  *
  * @author Bradley Davis
  */
 public class SmsBroadcastReceiver extends BroadcastReceiver {
     private static final String ACTION_SMS_NEW = "android.provider.Telephony.SMS_DELIVER";
+    public static final String ACTION_MESSAGE_RECEIVED = "online.bradleydavis.TrackAndTrace";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_ADDRESSES = "addresses";
+    public static final String EXTRA_BODIES = "bodies";
+    public static final String EXTRA_DATES = "dates";
+    private static final ExecutorService receiveExecutor = Executors.newSingleThreadExecutor();
+    //messages received but not yet saved. Only touched while holding its own lock.
+    private static final List<ReceivedMessage> pending = new ArrayList<ReceivedMessage>();
 
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
+        final Context applicationContext = context.getApplicationContext();
 
         //if the message is a new message, we need to save it.
-        if (action.equals(ACTION_SMS_NEW)) {
+        if (ACTION_SMS_NEW.equals(action)) {
             Bundle bundle = intent.getExtras();
             if (bundle != null) {
-
-                String sender = "", text = "";
                 //retrieve the messages from the intent.
-                SmsMessage[] smsMessages = Telephony.Sms.Intents.getMessagesFromIntent(intent);
-                for (SmsMessage message : smsMessages) {
-                    // Do whatever you want to do with SMS.
-                    sender = message.getOriginatingAddress();
-                    text += message.getMessageBody(); //I have no idea why this concat is here but it was there on SO.
+                List<ReceivedMessage> received = GroupParts(Telephony.Sms.Intents.getMessagesFromIntent(intent),
+                        System.currentTimeMillis());
+                synchronized (pending) {
+                    pending.addAll(received);
                 }
 
-                //add the message to the database.
-                ContentValues values = new ContentValues();
-                values.put("address", sender);
-                values.put("body", text);
-                context.getContentResolver().insert(
-                        Uri.parse("content://sms/inbox"), values);
+                //saving the messages is done off the main thread to keep within the broadcast time limit.
+                //a burst of deliveries is saved together by whichever save runs first.
+                final PendingResult pendingResult = goAsync();
+                receiveExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            SaveMessages(applicationContext);
+                        }
+                        finally {
+                            pendingResult.finish();
+                        }
+                    }
+                });
+                return;
             }
         }
 
         //Send a local broadcast to inform the UI that a message has been received.
         LocalBroadcastManager localBroadcastManager =
-                LocalBroadcastManager.getInstance(context.getApplicationContext());
-        localBroadcastManager.sendBroadcast(new Intent("online.bradleydavis.TrackAndTrace"));
+                LocalBroadcastManager.getInstance(applicationContext);
+        localBroadcastManager.sendBroadcast(new Intent(ACTION_MESSAGE_RECEIVED));
+    }
+
+    /**
+     * Method to reassemble the parts of a delivery into one message per sender.
+     * A long message arrives as several parts, which are joined in the order they were delivered.
+     *
+     * @param parts the parts of the delivery.
+     * @param receivedAt the time the delivery was received (epoch millis).
+     * @return the messages, in the order their senders first appeared.
+     */
+    private static List<ReceivedMessage> GroupParts(SmsMessage[] parts, long receivedAt) {
+        Map<String, ReceivedMessage> bySender = new LinkedHashMap<String, ReceivedMessage>();
+        if (parts != null) {
+            for (SmsMessage part : parts) {
+                if (part == null)
+                    continue;
+
+                String sender = part.getOriginatingAddress();
+                ReceivedMessage message = bySender.get(sender);
+                if (message == null) {
+                    message = new ReceivedMessage(sender, receivedAt, part.getTimestampMillis());
+                    bySender.put(sender, message);
+                }
+                if (part.getMessageBody() != null)
+                    message.body.append(part.getMessageBody());
+            }
+        }
+        return new ArrayList<ReceivedMessage>(bySender.values());
+    }
+
+    /**
+     * Method to add every pending message to the inbox in one batch and hand them to the exporter and UI.
+     *
+     * @param context Application context.
+     */
+    private static void SaveMessages(Context context) {
+        List<ReceivedMessage> batch;
+        synchronized (pending) {
+            if (pending.isEmpty())
+                return;
+            batch = new ArrayList<ReceivedMessage>(pending);
+            pending.clear();
+        }
+
+        //the storage manager applies the diagnostics setting, so it is fetched before anything is measured.
+        StorageManager storageManager = StorageManager.getInstance(context);
+        long start = Metrics.startTimer();
+        Metrics.add(Metrics.MESSAGES_RECEIVED, batch.size());
+
+        //add the messages to the database.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(batch.size());
+        for (ReceivedMessage message : batch) {
+            ContentValues values = new ContentValues();
+            values.put("address", message.sender);
+            values.put("body", message.body.toString());
+            values.put("date", message.date);
+            values.put("date_sent", message.dateSent);
+            operations.add(ContentProviderOperation.newInsert(InboxReader.SMS_INBOX).withValues(values).build());
+        }
+        ContentProviderResult[] results = null;
+        try {
+            results = context.getContentResolver().applyBatch(InboxReader.SMS_INBOX.getAuthority(), operations);
+        }
+        catch (Exception e) {
+            Log.d("TrackAndTrace", String.valueOf(e.getMessage()));
+        }
+
+        List<SingleMessage> saved = new ArrayList<SingleMessage>(batch.size());
+        for (int i = 0; results != null && i < results.length; i++) {
+            long id = results[i].uri == null ? -1 : ContentUris.parseId(results[i].uri);
+            if (id >= 0) {
+                ReceivedMessage message = batch.get(i);
+                saved.add(new SingleMessage(id, message.sender, message.date, message.body.toString()));
+            }
+        }
+
+        Intent received = new Intent(ACTION_MESSAGE_RECEIVED);
+        if (!saved.isEmpty()) {
+            //hand the new rows straight to the cache, the exporter and the UI.
+            MessageCache.getInstance().putAll(saved);
+            storageManager.ExportMessages(saved);
+
+            long[] ids = new long[saved.size()];
+            String[] addresses = new String[saved.size()];
+            String[] bodies = new String[saved.size()];
+            long[] dates = new long[saved.size()];
+            for (int i = 0; i < ids.length; i++) {
+                SingleMessage message = saved.get(i);
+                ids[i] = message.getId();
+                addresses[i] = message.getPhoneNumber();
+                bodies[i] = message.getMessageContent();
+                dates[i] = message.getTimestamp();
+            }
+            received.putExtra(EXTRA_IDS, ids);
+            received.putExtra(EXTRA_ADDRESSES, addresses);
+            received.putExtra(EXTRA_BODIES, bodies);
+            received.putExtra(EXTRA_DATES, dates);
+        }
+
+        //Send one local broadcast for the whole batch to inform the UI that messages have been received.
+        LocalBroadcastManager.getInstance(context).sendBroadcast(received);
+        Metrics.stopTimer(Metrics.RECEIVER_SAVE, start);
+    }
+
+    /**
+     * Class holding a message which has been received but not yet added to the inbox.
+     */
+    private static class ReceivedMessage {
+        private final String sender;
+        private final StringBuilder body = new StringBuilder();
+        private final long date;
+        private final long dateSent;
+
+        private ReceivedMessage(String sender, long date, long dateSent) {
+            this.sender = sender;
+            this.date = date;
+            this.dateSent = dateSent;
+        }
     }
 }
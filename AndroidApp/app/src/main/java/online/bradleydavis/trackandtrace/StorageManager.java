@@ -1,23 +1,21 @@
 package online.bradleydavis.trackandtrace;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
-import android.os.Environment;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class to handle how the application uses the device storage which is necessary for this application.
@@ -25,203 +23,733 @@ import java.util.Locale;
  * @author Bradley Davis
  */
 public class StorageManager {
+    private static StorageManager instance;
+    private static final long EXPORT_DEBOUNCE_MILLIS = 500;
+    private static final long BUNDLE_DEBOUNCE_MILLIS = 10000;
     private Context context;
-    private final String baseFilePath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS).toString();
-    private final String filePathExt = File.separator + "TrackAndTrace";
-    SimpleDateFormat timeConverter = new SimpleDateFormat("HH:mm", Locale.ENGLISH);
-    SimpleDateFormat dateConverter = new SimpleDateFormat("dd/MM/yyyy", Locale.ENGLISH);
+    private ExportScheduler exportScheduler;
+    private ExportCheckpoint checkpoint;
+    private DailySegmentStore segmentStore;
+    private RetentionEngine retentionEngine;
+    private MessageDatabase messageDatabase;
+    private ExportBundleWriter bundleWriter;
+    private InboxReader inboxReader;
+    private MessageCache messageCache;
+    private ExportStreamServer streamServer;
+    private ExportStorage exportStorage;
+    private final AtomicBoolean bundleQueued = new AtomicBoolean(false);
+    private static final int DATABASE_BATCH_SIZE = 500;
+
+    /**
+     * Method to get the storage manager shared by the whole application.
+     * Sharing a single instance means that all export requests go through the same worker.
+     *
+     * @param context Any context within the application.
+     * @return the shared storage manager.
+     */
+    public static synchronized StorageManager getInstance(Context context) {
+        if (instance == null)
+            instance = new StorageManager(context.getApplicationContext());
+        return instance;
+    }
 
     /**
      * Constructor to pass in the context of the application.
      *
      * @param context Application context.
      */
-    public StorageManager(Context context) {
+    private StorageManager(Context context) {
         this.context = context;
-        if (!CreateDir(baseFilePath + filePathExt)) {
-            Toast.makeText(context, "Error creating file System - contact developer", Toast.LENGTH_LONG).show();
+        DiagnosticSettings.apply(context);
+        this.checkpoint = new ExportCheckpoint(context);
+        this.inboxReader = new InboxReader(context.getContentResolver());
+        this.messageCache = MessageCache.getInstance();
+        this.exportStorage = CreateExportStorage(context);
+        this.segmentStore = new DailySegmentStore(exportStorage.getDirectory(), DeviceIdentity.get(context));
+        this.messageDatabase = MessageDatabase.getInstance(context);
+        this.bundleWriter = new ExportBundleWriter(exportStorage.getDirectory());
+        this.retentionEngine = new RetentionEngine(context, segmentStore, messageDatabase, exportStorage);
+        this.exportScheduler = new ExportScheduler(PerformUpdate(), EXPORT_DEBOUNCE_MILLIS);
+        //queued first so that nothing is published until the old folder has been cleared.
+        exportScheduler.execute(PerformStorageMigration());
+        if (!CreateDir(exportStorage.getDirectory()))
+            ShowToast("Error creating file System - contact developer");
+    }
+
+    /**
+     * Method to create the export storage chosen on the diagnostics screen.
+     * MediaStore is used from Android 10 unless the file backend has been chosen to compare against it.
+     *
+     * @param context Application context.
+     * @return the export storage.
+     */
+    private static ExportStorage CreateExportStorage(Context context) {
+        return CreateExportStorage(context, DiagnosticSettings.usesMediaStore(context) ?
+                MediaStoreExportStorage.NAME : FileExportStorage.NAME);
+    }
+
+    /**
+     * Method to create an export storage by name.
+     *
+     * @param context Application context.
+     * @param name the name of the storage.
+     * @return the export storage, falling back to files where MediaStore cannot be used.
+     */
+    private static ExportStorage CreateExportStorage(Context context, String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && MediaStoreExportStorage.NAME.equals(name))
+            return new MediaStoreExportStorage(context);
+        return new FileExportStorage(context);
+    }
+
+    /**
+     * Method creating the runnable which clears the exports out of the folder of the storage used before, after the
+     * storage has been changed or the app upgraded from a version which always wrote to the shared folder.
+     * Retention only looks in the folder in use, so anything left behind would never expire.
+     * The change is only recorded once the old folder is empty, so a failure is retried on the next start.
+     *
+     * @return A runnable which will clear the previous storage.
+     */
+    private Runnable PerformStorageMigration() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                String previousName = DiagnosticSettings.getExportStorageName(context);
+                if (!previousName.equals(exportStorage.getName())) {
+                    ExportStorage previous = CreateExportStorage(context, previousName);
+                    if (previous.getName().equals(exportStorage.getName()) || ClearExports(previous))
+                        DiagnosticSettings.setExportStorageName(context, exportStorage.getName());
+                }
+            }
+        };
+    }
+
+    /**
+     * Method to delete every export left in the folder of another storage and withdraw it.
+     * Both backends publish into the same shared folder, so the deletions are withdrawn through both. This drops any
+     * stale MediaStore entries before new files with the same names are published.
+     *
+     * @param previous the storage used before.
+     * @return whether or not the folder is now empty.
+     */
+    private boolean ClearExports(ExportStorage previous) {
+        File directory = previous.getDirectory();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return !directory.exists();
+
+        boolean cleared = true;
+        List<File> deleted = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.isFile())
+                continue;
+            if (file.delete())
+                deleted.add(file);
+            else
+                cleared = false;
+        }
+        try {
+            previous.remove(deleted);
+            exportStorage.remove(deleted);
         }
+        catch (IOException e) {
+            Log.d("TrackAndTrace Storage Migration", String.valueOf(e.getMessage()));
+            cleared = false;
+        }
+        Metrics.add(Metrics.FILES_DELETED, deleted.size());
+        Log.d("TrackAndTrace Storage Migration", "deleted " + deleted.size() + " files from " + previous.getName());
+        return cleared;
     }
 
     /**
      * This is the method called to ensure that all files are updated.
-     * This runs another method on a separate thread to ensure that this can be done outside of the UI thread.
+     * This queues the update on the export worker to ensure that this can be done outside of the UI thread.
+     * Requests made while an update is already queued are merged into that update.
      */
     public void UpdateFiles() {
-        Thread thread = new Thread(PerformUpdate());
-        thread.start();
+        exportScheduler.requestUpdate();
     }
 
     /**
-     * Method creating the runnable which updates the various files on the device.
+     * Method to update the files only if the inbox has messages which have not been exported yet.
+     * The check is queued on the export worker behind any received messages still being written, so messages this
+     * application has just added to the inbox, which move the checkpoint on as they are written, do not cause a
+     * second export. The message cache is checked against the inbox at the same time, as this is called whenever the
+     * inbox changes.
+     */
+    public void UpdateFilesIfNew() {
+        exportScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                CheckCache();
+                if (HasNewMessages())
+                    exportScheduler.requestUpdate();
+            }
+        });
+    }
+
+    /**
+     * Method to export a batch of messages which have just been received, without rescanning the inbox.
+     * The messages are appended to their days' segments on the export worker. If they directly follow the checkpoint,
+     * the checkpoint is moved on so that the next incremental export has nothing to do.
+     * No export pass is requested. The bundle is rebuilt once things go quiet, so a burst of received messages
+     * rebuilds it once.
      *
-     * @return A runnable which will write new files and delete old ones.
+     * @param messages the messages which have just been added to the inbox, in the order they were added.
      */
-    private Runnable PerformUpdate() {
-        return new Runnable() {
+    public void ExportMessages(final List<SingleMessage> messages) {
+        exportScheduler.execute(new Runnable() {
             @Override
             public void run() {
-                List<String> filesWritten = WriteFiles();
-                //delete the old files
-                if (filesWritten != null)
-                    DeleteOld(filesWritten);
+                long start = Metrics.startTimer();
+                WriteMessages(messages);
+                Metrics.stopTimer(Metrics.EXPORT_MESSAGE, start);
             }
-        };
+        });
+        RequestBundleUpdate();
     }
 
     /**
-     * Method to delete the files which are no longer necessary.
-     * To comply with GDPR, the files on this device must be deleted after 21 days.
+     * Method to rebuild the export bundle on the export worker after a delay.
+     * Requests made while a rebuild is waiting are merged into it.
+     */
+    private void RequestBundleUpdate() {
+        if (!bundleQueued.compareAndSet(false, true))
+            return;
+
+        exportScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                bundleQueued.set(false);
+                UpdateBundle();
+            }
+        }, BUNDLE_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Method to append a batch of messages to disk and move the checkpoint on if nothing has been missed.
      *
-     * @param filesToKeep The files which have just been written.
+     * @param received the messages to write.
      */
-    private void DeleteOld(List<String> filesToKeep) {
-        //get the files currently on disk.
-        File directory = new File(baseFilePath + filePathExt);
-        String[] oldFiles = directory.list();
-        //if there are no files on disk or if the same number of files are on disk as have just been written, we have nothing to delete.
-        if (oldFiles == null || oldFiles.length == filesToKeep.size())
+    private void WriteMessages(List<SingleMessage> received) {
+        long cutoff = RetentionEngine.getCutoff();
+        List<SingleMessage> messages = new ArrayList<SingleMessage>(received.size());
+        for (SingleMessage message : received) {
+            if (message.getTimestamp() > cutoff)
+                messages.add(message);
+        }
+        if (messages.isEmpty())
+            return;
+
+        messageDatabase.insertAll(messages);
+
+        DailySegmentStore.Appender appender = segmentStore.openAppender();
+        boolean failed = false;
+        SingleMessage newest = messages.get(0);
+        for (SingleMessage message : messages) {
+            int returnValue = appender.append(message);
+            Metrics.increment(returnValue == 0 ? Metrics.MESSAGES_WRITTEN :
+                    returnValue == 1 ? Metrics.MESSAGES_SKIPPED : Metrics.WRITE_FAILURES);
+            failed |= returnValue == -1;
+            if (message.getId() > newest.getId())
+                newest = message;
+        }
+        try {
+            //the whole batch is published at once.
+            List<File> touched = appender.close();
+            Metrics.add(Metrics.FILES_WRITTEN, touched.size());
+            PublishAppendedFiles(touched);
+        }
+        catch (IOException e) {
+            Log.d("TrackAndTrace File Writing", e.getMessage());
             return;
+        }
+        if (failed)
+            return;
+
+        //only move the checkpoint if there are no unexported messages between it and the newest in the batch.
+        if (newest.getId() > checkpoint.getLastId() && IsCheckpointValid()) {
+            StringBuilder selection = new StringBuilder("_id > ? AND _id < ? AND _id NOT IN (");
+            String[] selectionArgs = new String[messages.size() + 2];
+            selectionArgs[0] = String.valueOf(checkpoint.getLastId());
+            selectionArgs[1] = String.valueOf(newest.getId());
+            for (int i = 0; i < messages.size(); i++) {
+                selection.append(i == 0 ? "?" : ", ?");
+                selectionArgs[i + 2] = String.valueOf(messages.get(i).getId());
+            }
+            selection.append(')');
 
-        // for each file, if it is not in the list of files to keep, delete it.
-        for (String file : oldFiles) {
-            if (!filesToKeep.contains(file)) {
-                //if the file found is not listed to be kept, delete it.
-                File toDelete = new File(baseFilePath + filePathExt + File.separator + file);
-                toDelete.delete();
-                MediaScannerConnection.scanFile(context, new String[] {toDelete.getAbsolutePath()},
-                        null, null);
+            Cursor gapCursor = context.getContentResolver().query(InboxReader.SMS_INBOX, new String[] {"_id"},
+                    selection.toString(), selectionArgs, "_id ASC LIMIT 1");
+            if (gapCursor == null)
+                return;
+
+            try {
+                if (!gapCursor.moveToFirst())
+                    checkpoint.save(newest.getId(), newest.getTimestamp());
+            }
+            finally {
+                gapCursor.close();
             }
         }
     }
 
     /**
-     * Method to write files to disk.
-     * This attempts to write all text messages which are younger than 21 days to disk.
-     *
-     * @return an array of the files that either have been written to disk or that the write was attempted for.
-     */
-    private List<String> WriteFiles() {
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.DATE, -21);
-        Date twentyOneDaysAgo = calendar.getTime();
-
-        //one file per text message will be written. These can then be more easily managed off device.
-        //get messages from database.
-        ContentResolver contentResolver = context.getContentResolver();
-        Cursor smsInboxCursor = contentResolver.query(Uri.parse("content://sms/inbox"), null, null, null, null);
-        int indexID = smsInboxCursor.getColumnIndex("_id");
-        int indexBody = smsInboxCursor.getColumnIndex("body");
-        int indexAddress = smsInboxCursor.getColumnIndex("address");
-        int indexTimeStamp = smsInboxCursor.getColumnIndex("date");
-
-        //create the list of files to return.
-        List<String> filesWritten = new ArrayList<String>();
-
-        //move to start or return if there are no text messages.
-        if (indexBody < 0 || !smsInboxCursor.moveToFirst()) return null;
-
-        do {
-            //get message details
-            long id = smsInboxCursor.getLong(indexID);
-            String phoneNumber = smsInboxCursor.getString(indexAddress);
-            String timeStamp = smsInboxCursor.getString(indexTimeStamp);
-            Date dateStamp = new Date(Long.parseLong(timeStamp));
-            String time = timeConverter.format(dateStamp);
-            String date = dateConverter.format(dateStamp);
-            String messageBody = smsInboxCursor.getString(indexBody);
-            messageBody = messageBody.replaceAll(",", "");
-            messageBody = messageBody.replaceAll("\n", " ");
-
-            //create the file and data to write to it.
-            File newFile = new File(baseFilePath + filePathExt +
-                    File.separator + id + ".txt");
-            String formattedEntry = messageBody + "," + phoneNumber + "," +
-                    time + "," + date;
-
-            //if the message is younger than 21 days, save it to the folder.
-            if (dateStamp.after(twentyOneDaysAgo)) {
-                int returnValue = WriteSpecific(newFile, formattedEntry);
-                switch (returnValue) {
-                    case -1:
-                        //error in writing to file
-                        break;
-                    case 0:
-                        //everything was fine
-                        break;
-                    case 1:
-                        //file already exists
-                        break;
+     * Method to remove expired messages and files.
+     * This queues the retention run on the export worker so that it never overlaps an export.
+     */
+    public void RunRetention() {
+        exportScheduler.execute(PerformRetention());
+    }
+
+    /**
+     * Method to export everyone whose visit overlapped a visit of a case, for the health authority to collect.
+     * This is queued on the export worker behind any export still running, so every exported message is traced.
+     * The contacts are written next to the segments and expire with the oldest of them.
+     *
+     * @param number the phone number of the case in any format.
+     */
+    public void ExportTrace(final String number) {
+        exportScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                long cutoff = RetentionEngine.getCutoff();
+                //the cache already holds the whole window in memory when it is current, but may still hold messages
+                //retention has not reached yet.
+                List<SingleMessage> window = new ArrayList<SingleMessage>();
+                for (SingleMessage message : IsCacheCurrent() ? messageCache.getAfter(-1) :
+                        messageDatabase.findBetween(cutoff + 1, Long.MAX_VALUE)) {
+                    if (message.getTimestamp() > cutoff)
+                        window.add(message);
+                }
+                List<SingleMessage> contacts = new ContactTraceIndex(window).findOverlapping(number, 0,
+                        Long.MAX_VALUE, ContactTraceIndex.DEFAULT_VISIT_MILLIS);
+                if (contacts.isEmpty()) {
+                    ShowToast("No contacts found for " + number);
+                    return;
                 }
 
-                //in this case, we need a list of all files that we attempted to write as these files should not be deleted if they exist.
-                filesWritten.add(id + ".txt");
+                File trace = new File(exportStorage.getDirectory(),
+                        ContactTraceIndex.getTraceFileName(contacts, System.currentTimeMillis()));
+                try {
+                    WriteTrace(contacts, trace);
+                }
+                catch (IOException e) {
+                    Log.d("TrackAndTrace Contact Trace", String.valueOf(e.getMessage()));
+                    ShowToast("Error exporting contacts - contact developer");
+                    return;
+                }
+                PublishFiles(Collections.singletonList(trace));
+                ShowToast("Exported " + contacts.size() + " contacts to " + trace.getName());
             }
-         } while (smsInboxCursor.moveToNext());
+        });
+    }
 
-        smsInboxCursor.close();
+    /**
+     * Method to write a contact trace, deleting what was written if it fails.
+     *
+     * @param contacts the contacts to write.
+     * @param trace the file to write them to.
+     * @throws IOException if the contacts could not be written.
+     */
+    private void WriteTrace(List<SingleMessage> contacts, File trace) throws IOException {
+        FileOutputStream out = new FileOutputStream(trace);
+        boolean written = false;
+        try {
+            ContactTraceIndex.writeCsv(contacts, out, DeviceIdentity.get(context));
+            out.getFD().sync();
+            written = true;
+        }
+        finally {
+            out.close();
+            if (!written && !trace.delete())
+                Log.d("TrackAndTrace Contact Trace", "could not delete " + trace.getName());
+        }
+    }
 
-        return filesWritten;
+    /**
+     * Method to show a toast from the main thread, as the storage manager may be created from a background thread and
+     * its work runs on the export worker.
+     *
+     * @param text the text to show.
+     */
+    private void ShowToast(final String text) {
+        final Context toastContext = context;
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(toastContext, text, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Method to check whether or not the inbox has messages which have not been exported yet.
+     * This only looks for a single row after the checkpoint, so is cheap enough to run before deciding to export.
+     *
+     * @return whether or not there are messages to export.
+     */
+    public boolean HasNewMessages() {
+        if (!IsCheckpointValid())
+            return true;
+
+        return inboxReader.exists("_id > ?", new String[] {String.valueOf(checkpoint.getLastId())});
     }
 
     /**
-     * Method to create a file and write specific data to it.
+     * Method to wait for any queued or running updates or retention runs to finish.
      *
-     * @param file the file to be written to/created.
-     * @param data the data to write to the file.
-     * @return
-     * 1 - File already exists
-     * 0 - File created and written to without issue
-     * -1 - There was an issue in writing the file
+     * @param timeoutMillis the maximum time to wait in milliseconds.
+     * @return whether or not all updates finished before the timeout.
+     * @throws InterruptedException if the waiting thread is interrupted.
      */
-    private int WriteSpecific(File file, String data) {
-        FileWriter fileWriter = null;
+    public boolean AwaitUpdates(long timeoutMillis) throws InterruptedException {
+        return exportScheduler.awaitIdle(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method creating the runnable which updates the various files on the device.
+     *
+     * @return A runnable which will write new messages to disk.
+     */
+    private Runnable PerformUpdate() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.startTimer();
+                //only rescan the whole inbox when we have no checkpoint we can trust, nothing has been mirrored yet
+                //or the export folder is empty, as it is after switching storage.
+                WriteFiles(IsCheckpointValid() && !messageDatabase.isEmpty() &&
+                        !DailySegmentStore.listSegments(exportStorage.getDirectory()).isEmpty());
+                Metrics.stopTimer(Metrics.EXPORT_UPDATE, start);
+                UpdateBundle();
+            }
+        };
+    }
+
+    /**
+     * Method creating the runnable which removes expired messages and files from the device.
+     *
+     * @return A runnable which will run the retention engine.
+     */
+    private Runnable PerformRetention() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.startTimer();
+                RetentionEngine.Result result = retentionEngine.run();
+                Metrics.add(Metrics.MESSAGES_DELETED, result.messagesDeleted);
+                Metrics.add(Metrics.FILES_DELETED, result.filesDeleted);
+                Metrics.stopTimer(Metrics.RETENTION_RUN, start);
+                UpdateBundle();
+            }
+        };
+    }
+
+    /**
+     * Method to rebuild the export bundle if any segment has changed since it was last built.
+     * The bundle lets the desktop collector pull every segment in one transfer and check none were truncated.
+     */
+    private void UpdateBundle() {
+        long start = Metrics.startTimer();
         try {
-            if (!file.exists()) {
-                if (!file.createNewFile()) {
-                    return -1;
+            PublishFiles(bundleWriter.update());
+        }
+        catch (IOException e) {
+            Log.d("TrackAndTrace Bundle", String.valueOf(e.getMessage()));
+        }
+        Metrics.stopTimer(Metrics.BUNDLE_UPDATE, start);
+    }
+
+    /**
+     * Method to get the directory the exports are written to.
+     *
+     * @return the export directory.
+     */
+    public File GetExportDirectory() {
+        return exportStorage.getDirectory();
+    }
+
+    /**
+     * Method to get the name of the export storage in use, for diagnostics.
+     *
+     * @return the name of the storage.
+     */
+    public String GetExportStorageName() {
+        return exportStorage.getName();
+    }
+
+    /**
+     * Method to get the outcome of the most recent retention run.
+     *
+     * @return the last retention result or null if retention has not run yet.
+     */
+    public RetentionEngine.Result GetLastRetentionResult() {
+        return retentionEngine.getLastResult();
+    }
+
+    /**
+     * Method to start or stop serving the export on the loopback interface, for collection through adb forward.
+     *
+     * @param enabled whether or not the export should be served.
+     * @return whether or not the server is now running.
+     */
+    public synchronized boolean SetStreamServerEnabled(boolean enabled) {
+        if (streamServer == null) {
+            final String deviceId = DeviceIdentity.get(context);
+            streamServer = new ExportStreamServer(ExportStreamServer.DEFAULT_PORT, new ExportStreamServer.Source() {
+                @Override
+                public void writeMessages(long sinceMillis, boolean newestFirst, CsvRecordWriter writer)
+                        throws IOException {
+                    //the database mirrors every exported message and can be read in either order.
+                    messageDatabase.writeCsv(sinceMillis, newestFirst, writer, deviceId);
                 }
+            });
+        }
+
+        try {
+            if (enabled)
+                streamServer.start();
+            else
+                streamServer.stop();
+        }
+        catch (IOException e) {
+            Log.d("TrackAndTrace Stream Server", String.valueOf(e.getMessage()));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return streamServer.isRunning();
+    }
+
+    /**
+     * Method to check whether or not the export is being served on the loopback interface.
+     *
+     * @return whether or not the server is running.
+     */
+    public synchronized boolean IsStreamServerRunning() {
+        return streamServer != null && streamServer.isRunning();
+    }
+
+    /**
+     * Method to get the token the desktop collector must send to the export server.
+     *
+     * @return the token, or null if the server is not running.
+     */
+    public synchronized String GetStreamServerToken() {
+        return streamServer == null ? null : streamServer.getToken();
+    }
+
+    /**
+     * Method to check whether or not the stored export checkpoint can be used for an incremental export.
+     * The checkpoint is only trusted if the message it points at still exists with the same date.
+     * If the inbox has been cleared or restored, ids can be reused so a full rescan is required.
+     *
+     * @return whether or not an incremental export can be performed.
+     */
+    private boolean IsCheckpointValid() {
+        if (!checkpoint.exists() || checkpoint.getLastDate() > System.currentTimeMillis())
+            return false;
+
+        Cursor checkpointCursor = context.getContentResolver().query(InboxReader.SMS_INBOX, new String[] {"date"},
+                "_id = ?", new String[] {String.valueOf(checkpoint.getLastId())}, null);
+        if (checkpointCursor == null)
+            return false;
+
+        try {
+            return checkpointCursor.moveToFirst() &&
+                    checkpointCursor.getLong(0) == checkpoint.getLastDate();
+        }
+        finally {
+            checkpointCursor.close();
+        }
+    }
+
+    /**
+     * Method to check whether or not the message cache holds every message in the inbox.
+     * This only looks for a single row newer than the newest cached message.
+     *
+     * @return whether or not the cache can be exported from instead of the inbox.
+     */
+    private boolean IsCacheCurrent() {
+        if (!messageCache.isComplete())
+            return false;
+
+        return !inboxReader.exists("_id > ?", new String[] {String.valueOf(messageCache.getNewestId())});
+    }
+
+    /**
+     * Method to refill the message cache if messages it holds have been removed from the inbox by anything other than
+     * retention, such as another messaging application. The cache is only told about messages as they are added, so the
+     * rows the inbox holds over the range the cache covers are counted and compared with the number cached.
+     */
+    private void CheckCache() {
+        if (!messageCache.isComplete())
+            return;
+
+        long newestId = messageCache.getNewestId();
+        long oldestTimestamp = messageCache.getOldestTimestamp();
+        if (newestId < 0)
+            return;
+        int rows = inboxReader.count("_id <= ? AND date >= ?",
+                new String[] {String.valueOf(newestId), String.valueOf(oldestTimestamp)});
+        if (rows < 0 || rows == messageCache.size())
+            return;
+
+        //a message arriving while this runs also makes the counts differ, which only costs an extra read.
+        messageCache.invalidate();
+        inboxReader.readWindow(InboxReader.ORDER_OLDEST_FIRST, messageCache);
+        messageCache.markComplete();
+    }
+
+    /**
+     * Method to write messages to disk.
+     * This appends every text message within the 21 day window to the segment for its day,
+     * and mirrors it into the searchable database, in a single pass over the inbox.
+     * When exporting incrementally, only messages newer than the stored checkpoint are exported, and they are taken from
+     * the message cache if it is known to hold them. A full export refills the cache.
+     *
+     * @param incremental whether or not to only export messages newer than the checkpoint.
+     */
+    private void WriteFiles(boolean incremental) {
+        //either the messages after the checkpoint or everything in the window.
+        String selection = null;
+        String[] selectionArgs = null;
+        if (incremental) {
+            selection = "_id > ?";
+            selectionArgs = new String[] {String.valueOf(checkpoint.getLastId())};
+        }
+
+        //messages are appended to one file per day. These can then be more easily managed off device.
+        SegmentExporter exporter = new SegmentExporter(incremental);
+        MessageDatabase.BatchInserter databaseMirror = messageDatabase.openBatchInserter(DATABASE_BATCH_SIZE);
+        int rows;
+        if (incremental && IsCacheCurrent()) {
+            //everything after the checkpoint is already in memory.
+            List<SingleMessage> newMessages = messageCache.getAfter(checkpoint.getLastId());
+            for (SingleMessage message : newMessages) {
+                exporter.accept(message);
+                databaseMirror.accept(message);
             }
-            else {
-                //file already exists - presume that it has been dealt with
-                return 1;
-            }
+            rows = newMessages.size();
+        }
+        else {
+            //a full rescan means the inbox may have changed underneath the cache, so it is refilled as well.
+            if (!incremental)
+                messageCache.invalidate();
+            rows = inboxReader.read(selection, selectionArgs, InboxReader.ORDER_OLDEST_FIRST, 0,
+                    exporter, databaseMirror, messageCache);
+            if (!incremental)
+                messageCache.markComplete();
+        }
+        databaseMirror.flush();
+        Metrics.record(Metrics.EXPORT_ROWS, rows);
 
-            fileWriter = new FileWriter(file);
-            fileWriter.write(data);
-            //force the media scanner to update the file system.
-            MediaScannerConnection.scanFile(context, new String[] {file.getAbsolutePath()},
-                    null, null);
+        try {
+            //publish once per segment rather than once per message.
+            List<File> touched = exporter.appender.close();
+            Metrics.add(Metrics.FILES_WRITTEN, touched.size());
+            PublishAppendedFiles(touched);
         }
         catch (IOException e) {
             Log.d("TrackAndTrace File Writing", e.getMessage());
-            return -1;
+            return;
         }
-        finally {
-            if (fileWriter != null) {
-                try {
-                    fileWriter.close();
-                }
-                catch (IOException e) {
-                    Log.d("TrackAndTrace File Writing", e.getMessage());
-                    return -1;
-                }
+
+        if (rows > 0 && exporter.newestId != ExportCheckpoint.NONE)
+            checkpoint.save(exporter.newestId, exporter.newestDate);
+    }
+
+    /**
+     * Class which appends each message read from the inbox to its day's segment,
+     * keeping track of how far the checkpoint can be moved on.
+     */
+    private class SegmentExporter implements MessageConsumer {
+        private final DailySegmentStore.Appender appender = segmentStore.openAppender();
+        private long newestId;
+        private long newestDate;
+        private boolean writeFailed = false;
+
+        private SegmentExporter(boolean incremental) {
+            this.newestId = incremental ? checkpoint.getLastId() : ExportCheckpoint.NONE;
+            this.newestDate = incremental ? checkpoint.getLastDate() : ExportCheckpoint.NONE;
+        }
+
+        @Override
+        public void accept(SingleMessage message) {
+            int returnValue = appender.append(message);
+
+            switch (returnValue) {
+                case -1:
+                    //error in writing to file
+                    writeFailed = true;
+                    Metrics.increment(Metrics.WRITE_FAILURES);
+                    break;
+                case 0:
+                    //everything was fine
+                    Metrics.increment(Metrics.MESSAGES_WRITTEN);
+                    break;
+                case 1:
+                    //message already exported
+                    Metrics.increment(Metrics.MESSAGES_SKIPPED);
+                    break;
+            }
+
+            //rows are sorted by _id so the last row seen is the newest.
+            //stop advancing at the first failed write so that it is retried next time.
+            if (!writeFailed) {
+                newestId = message.getId();
+                newestDate = message.getTimestamp();
             }
         }
+    }
+
+    /**
+     * Method to publish files which have changed so that the desktop collector can see them.
+     * Files written outside the export worker can be published from any thread.
+     *
+     * @param files the files which have been created or changed.
+     */
+    public void PublishFiles(List<File> files) {
+        if (files.isEmpty())
+            return;
 
-        return 0;
+        long start = Metrics.startTimer();
+        try {
+            exportStorage.publish(files);
+        }
+        catch (IOException e) {
+            Log.d("TrackAndTrace Publishing", String.valueOf(e.getMessage()));
+        }
+        Metrics.stopTimer(Metrics.STORAGE_PUBLISH, start);
+    }
+
+    /**
+     * Method to publish segments which have only been appended to, so that the desktop collector can see them.
+     *
+     * @param files the segments which have been created or appended to.
+     */
+    private void PublishAppendedFiles(List<File> files) {
+        if (files.isEmpty())
+            return;
+
+        long start = Metrics.startTimer();
+        try {
+            exportStorage.publishAppended(files);
+        }
+        catch (IOException e) {
+            Log.d("TrackAndTrace Publishing", String.valueOf(e.getMessage()));
+        }
+        Metrics.stopTimer(Metrics.STORAGE_PUBLISH, start);
     }
 
     /**
      * Create a given directory.
      *
-     * @param filePath the path of the directory to create.
+     * @param folder the directory to create.
      * @return whether or not the directory could be created.
      */
-    private boolean CreateDir(String filePath) {
-        File folder = null;
+    private boolean CreateDir(File folder) {
         try {
-            folder = new File(filePath);
             if (!folder.exists()) {
                 if (!folder.mkdirs()) {
                     return false;
@@ -0,0 +1,128 @@
+package online.bradleydavis.trackandtrace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal JVM benchmark harness used by the benchmark tests.
+ * Each run performs a batch of operations; the harness reports throughput, allocation per operation and
+ * the latency distribution of whole runs.
+ */
+final class Benchmark {
+    static final String ENABLE_PROPERTY = "trackandtrace.benchmark";
+
+    /**
+     * A benchmarked operation. setUp is called before every run and is not timed.
+     */
+    abstract static class Operation {
+        void setUp() throws Exception {
+        }
+
+        abstract void run() throws Exception;
+
+        void tearDown() throws Exception {
+        }
+    }
+
+    /**
+     * The measurements taken for one benchmark.
+     */
+    static class Result {
+        final String name;
+        final int opsPerRun;
+        final double opsPerSecond;
+        final double nanosPerOp;
+        final double bytesPerOp;
+        final long p50RunNanos;
+        final long p90RunNanos;
+        final long maxRunNanos;
+
+        Result(String name, int opsPerRun, long[] runNanos, long allocatedBytes) {
+            this.name = name;
+            this.opsPerRun = opsPerRun;
+            long total = 0;
+            for (long nanos : runNanos)
+                total += nanos;
+            long[] sorted = runNanos.clone();
+            Arrays.sort(sorted);
+            long ops = (long) opsPerRun * runNanos.length;
+            this.nanosPerOp = (double) total / ops;
+            this.opsPerSecond = ops * 1e9 / total;
+            this.bytesPerOp = allocatedBytes < 0 ? -1 : (double) allocatedBytes / ops;
+            this.p50RunNanos = sorted[sorted.length / 2];
+            this.p90RunNanos = sorted[Math.min(sorted.length - 1, (sorted.length * 9) / 10)];
+            this.maxRunNanos = sorted[sorted.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%-28s %7d ops/run %12.0f ops/s %9.1f ns/op %9.1f B/op  run p50 %8.2fms p90 %8.2fms max %8.2fms",
+                    name, opsPerRun, opsPerSecond, nanosPerOp, bytesPerOp,
+                    p50RunNanos / 1e6, p90RunNanos / 1e6, maxRunNanos / 1e6);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Method to check whether or not benchmarks have been enabled with -Dtrackandtrace.benchmark=true.
+     *
+     * @return whether or not to run benchmarks.
+     */
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLE_PROPERTY);
+    }
+
+    /**
+     * Method to measure an operation.
+     *
+     * @param name the name to report.
+     * @param opsPerRun how many operations each run performs.
+     * @param warmupRuns how many untimed runs to do first.
+     * @param measuredRuns how many timed runs to do.
+     * @param operation the operation to measure.
+     * @return the measurements.
+     * @throws Exception if the operation fails.
+     */
+    static Result measure(String name, int opsPerRun, int warmupRuns, int measuredRuns, Operation operation)
+            throws Exception {
+        for (int i = 0; i < warmupRuns; i++) {
+            operation.setUp();
+            operation.run();
+            operation.tearDown();
+        }
+
+        long[] runNanos = new long[measuredRuns];
+        long allocated = 0;
+        for (int i = 0; i < measuredRuns; i++) {
+            operation.setUp();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            operation.run();
+            runNanos[i] = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes();
+            operation.tearDown();
+            allocated = allocatedBefore < 0 || allocated < 0 ? -1 : allocated + allocatedAfter - allocatedBefore;
+        }
+
+        Result result = new Result(name, opsPerRun, runNanos, allocated);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Method to get the number of bytes allocated by the current thread so far.
+     *
+     * @return the bytes allocated or -1 if the JVM cannot report it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
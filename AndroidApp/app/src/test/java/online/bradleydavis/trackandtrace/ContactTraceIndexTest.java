@@ -0,0 +1,95 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the contact tracing index.
+ */
+public class ContactTraceIndexTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long TWO_PM = 1601730000000L;
+
+    private ContactTraceIndex index;
+
+    @Before
+    public void setUp() {
+        //deliberately not in time order.
+        index = new ContactTraceIndex(Arrays.asList(
+                new SingleMessage(5, "07700900005", TWO_PM + 130 * MINUTE, "late"),
+                new SingleMessage(1, "+447700900001", TWO_PM, "case arrives"),
+                new SingleMessage(2, "07700900002", TWO_PM + 30 * MINUTE, "table 2"),
+                new SingleMessage(3, "07700900003", TWO_PM - 90 * MINUTE, "too early"),
+                new SingleMessage(4, "07700900001", TWO_PM + 60 * MINUTE, "case again"),
+                new SingleMessage(6, "07700900006", TWO_PM + 80 * MINUTE, "table 6"),
+                new SingleMessage(7, "+447700900002", TWO_PM + 50 * MINUTE, "table 2 again")));
+    }
+
+    @Test
+    public void findBetween_returnsTheWindowOldestFirst() {
+        assertEquals(Arrays.asList("case arrives", "table 2", "table 2 again", "case again"),
+                bodies(index.findBetween(TWO_PM, TWO_PM + 70 * MINUTE)));
+        assertTrue(index.findBetween(TWO_PM + 200 * MINUTE, TWO_PM + 300 * MINUTE).isEmpty());
+    }
+
+    @Test
+    public void findByNumber_matchesEveryFormOfTheNumber() {
+        assertEquals(Arrays.asList("case arrives", "case again"),
+                bodies(index.findByNumber("07700 900001", TWO_PM - 200 * MINUTE, TWO_PM + 200 * MINUTE)));
+        assertEquals(Arrays.asList("case again"),
+                bodies(index.findByNumber("+447700900001", TWO_PM + 1, TWO_PM + 200 * MINUTE)));
+        assertTrue(index.findByNumber("07700900999", 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void findOverlapping_reportsEachContactOnce() {
+        //07700900002 overlaps both of the case's visits, twice over, but is only reported at their first message.
+        //the case's visits at 14:00 and 15:00 overlap anyone arriving between 13:00 and 16:00 for an hour long visit.
+        assertEquals(Arrays.asList("table 2", "table 6"),
+                bodies(index.findOverlapping("07700900001", 0, Long.MAX_VALUE, 60 * MINUTE)));
+        //only the first visit.
+        assertEquals(Arrays.asList("table 2"),
+                bodies(index.findOverlapping("07700900001", 0, TWO_PM + 1, 60 * MINUTE)));
+    }
+
+    @Test
+    public void writeCsv_usesTheSegmentLayout() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ContactTraceIndex.writeCsv(index.findBetween(TWO_PM, TWO_PM + 1), output, "device-1");
+
+        CsvRecordReader reader = new CsvRecordReader(new ByteArrayInputStream(output.toByteArray()));
+        List<String> fields = new ArrayList<String>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals("case arrives", fields.get(0));
+        assertEquals(String.valueOf(TWO_PM), fields.get(4));
+        assertEquals("device-1", fields.get(5));
+        assertFalse(reader.readRecord(fields));
+        reader.close();
+    }
+
+    @Test
+    public void getTraceOldest_readsTheOldestResultBackFromTheFileName() {
+        List<SingleMessage> results = index.findOverlapping("07700900001", 0, Long.MAX_VALUE, 60 * MINUTE);
+        String name = ContactTraceIndex.getTraceFileName(results, TWO_PM + 300 * MINUTE);
+
+        assertEquals(TWO_PM + 30 * MINUTE, ContactTraceIndex.getTraceOldest(name));
+        assertEquals(-1, ContactTraceIndex.getTraceOldest("messages-2020-10-03.csv"));
+        assertEquals(-1, ContactTraceIndex.getTraceOldest("trace-notes.csv"));
+    }
+
+    private static List<String> bodies(List<SingleMessage> messages) {
+        List<String> bodies = new ArrayList<String>();
+        for (SingleMessage message : messages)
+            bodies.add(message.getMessageContent());
+        return bodies;
+    }
+}
@@ -0,0 +1,48 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the CSV record reader.
+ */
+public class CsvRecordReaderTest {
+
+    @Test
+    public void recordsWrittenByTheWriter_areReadBackUnchanged() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CsvRecordWriter writer = new CsvRecordWriter(output);
+        writer.field("Smith, party of 4").field("line one\r\nline two").field("say \"hi\"").field(null).endRecord();
+        writer.field("second").endRecord();
+        writer.close();
+
+        CsvRecordReader reader = new CsvRecordReader(new ByteArrayInputStream(output.toByteArray()));
+        List<String> fields = new ArrayList<String>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("Smith, party of 4", "line one\r\nline two", "say \"hi\"", ""), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("second"), fields);
+        assertFalse(reader.readRecord(fields));
+        reader.close();
+    }
+
+    @Test
+    public void bareLineFeedsAndAMissingFinalTerminator_areAccepted() throws IOException {
+        CsvRecordReader reader = new CsvRecordReader(new ByteArrayInputStream("a,b\nc,\"d\"".getBytes("UTF-8")));
+        List<String> fields = new ArrayList<String>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("a", "b"), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("c", "d"), fields);
+        assertFalse(reader.readRecord(fields));
+        reader.close();
+    }
+}
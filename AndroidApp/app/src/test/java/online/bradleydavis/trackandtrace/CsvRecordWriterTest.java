@@ -0,0 +1,49 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the CSV record writer.
+ */
+public class CsvRecordWriterTest {
+
+    @Test
+    public void plainFields_areWrittenUnquoted() throws IOException {
+        assertEquals("a,b,c\r\n", write("a", "b", "c"));
+    }
+
+    @Test
+    public void specialCharacters_areQuotedAndKept() throws IOException {
+        assertEquals("\"Smith, party of 4\",\"line one\nline two\",\"say \"\"hi\"\"\"\r\n",
+                write("Smith, party of 4", "line one\nline two", "say \"hi\""));
+    }
+
+    @Test
+    public void nullField_isEmpty() throws IOException {
+        assertEquals("a,,c\r\n", write("a", null, "c"));
+    }
+
+    @Test
+    public void output_isUtf8() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CsvRecordWriter writer = new CsvRecordWriter(output);
+        writer.field("caf\u00e9").endRecord();
+        writer.close();
+        assertArrayEquals(new byte[] {'c', 'a', 'f', (byte) 0xc3, (byte) 0xa9, '\r', '\n'}, output.toByteArray());
+    }
+
+    private static String write(String... fields) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CsvRecordWriter writer = new CsvRecordWriter(output);
+        for (String field : fields)
+            writer.field(field);
+        writer.endRecord();
+        writer.close();
+        return output.toString("UTF-8");
+    }
+}
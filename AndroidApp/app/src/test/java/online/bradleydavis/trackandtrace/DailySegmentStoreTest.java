@@ -0,0 +1,166 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the daily segment store.
+ */
+public class DailySegmentStoreTest {
+    private static final String DEVICE_ID = "device-1";
+    private File directory;
+    private DailySegmentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("segments", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+        store = new DailySegmentStore(directory, DEVICE_ID);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void messagesOnTheSameDay_shareOneSegment() throws IOException {
+        long noon = dayAt(2020, Calendar.OCTOBER, 3, 12);
+        DailySegmentStore.Appender appender = store.openAppender();
+        assertEquals(0, appender.append(message(1, noon, "first")));
+        assertEquals(0, appender.append(message(2, noon + 60000, "second")));
+        assertEquals(0, appender.append(message(3, dayAt(2020, Calendar.OCTOBER, 4, 9), "third")));
+        List<File> touched = appender.close();
+
+        assertEquals(2, touched.size());
+        List<String> lines = readLines(new File(directory, "messages-2020-10-03.csv"));
+        assertEquals(2, lines.size());
+        assertEquals("first,07700900123,12:00,03/10/2020," + noon + ",device-1," +
+                ContentHash.of("07700900123", noon, "first"), lines.get(0));
+        assertTrue(lines.get(1).startsWith("second,07700900123,12:01,03/10/2020," + (noon + 60000) + ",device-1,"));
+    }
+
+    @Test
+    public void reappendingAnExportedId_isSkipped() throws IOException {
+        long noon = dayAt(2020, Calendar.OCTOBER, 3, 12);
+        DailySegmentStore.Appender appender = store.openAppender();
+        appender.append(message(1, noon, "first"));
+        appender.close();
+
+        appender = store.openAppender();
+        assertEquals(1, appender.append(message(1, noon, "first")));
+        assertTrue(appender.close().isEmpty());
+        assertEquals(1, readLines(new File(directory, "messages-2020-10-03.csv")).size());
+    }
+
+    @Test
+    public void anInterruptedExport_isCutBackSoNothingIsWrittenTwice() throws IOException {
+        long noon = dayAt(2020, Calendar.OCTOBER, 3, 12);
+        DailySegmentStore.Appender appender = store.openAppender();
+        appender.append(message(1, noon, "first"));
+        appender.close();
+
+        //the process died after the data for 2 reached the disk but before its id, and after the id of 3 but
+        //before its data.
+        File segment = new File(directory, "messages-2020-10-03.csv");
+        File index = new File(directory, "messages-2020-10-03.idx");
+        append(segment, "second,07700900123,12:01,03/10/2020," + (noon + 60000) + ",device-1,hash\r\n");
+        append(index, "3\n4");
+
+        appender = store.openAppender();
+        assertEquals(1, appender.append(message(1, noon, "first")));
+        assertEquals(0, appender.append(message(2, noon + 60000, "second")));
+        assertEquals(0, appender.append(message(3, noon + 120000, "third")));
+        appender.close();
+
+        List<String> lines = readLines(segment);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).startsWith("second,"));
+        assertTrue(lines.get(1).endsWith(ContentHash.of("07700900123", noon + 60000, "second")));
+        assertTrue(lines.get(2).startsWith("third,"));
+    }
+
+    @Test
+    public void indexesWithoutLengths_areTrusted() throws IOException {
+        long noon = dayAt(2020, Calendar.OCTOBER, 3, 12);
+        File segment = new File(directory, "messages-2020-10-03.csv");
+        append(segment, "first,07700900123,12:00,03/10/2020\r\n");
+        append(new File(directory, "messages-2020-10-03.idx"), "1\n");
+
+        DailySegmentStore.Appender appender = store.openAppender();
+        assertEquals(1, appender.append(message(1, noon, "first")));
+        assertEquals(0, appender.append(message(2, noon + 60000, "second")));
+        appender.close();
+        assertEquals(2, readLines(segment).size());
+    }
+
+    @Test
+    public void deleteBefore_onlyDropsFullyExpiredDays() throws IOException {
+        DailySegmentStore.Appender appender = store.openAppender();
+        appender.append(message(1, dayAt(2020, Calendar.OCTOBER, 1, 12), "old"));
+        appender.append(message(2, dayAt(2020, Calendar.OCTOBER, 2, 12), "boundary"));
+        appender.close();
+
+        List<File> deleted = store.deleteBefore(dayAt(2020, Calendar.OCTOBER, 2, 6));
+
+        assertEquals(1, deleted.size());
+        assertFalse(new File(directory, "messages-2020-10-01.csv").exists());
+        assertFalse(new File(directory, "messages-2020-10-01.idx").exists());
+        assertTrue(new File(directory, "messages-2020-10-02.csv").exists());
+    }
+
+    private static SingleMessage message(long id, long timestamp, String body) {
+        return new SingleMessage(id, "07700900123", timestamp, body);
+    }
+
+    private static long dayAt(int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void append(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,114 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmarks for encrypting and decrypting exports, over the CSV of synthetic inboxes of 10k and 100k messages.
+ * Each operation is one chunk, so ops/s multiplied by the chunk size gives the throughput.
+ * These are skipped unless run with -Dtrackandtrace.benchmark=true, for example:
+ * ./gradlew testDebugUnitTest --tests '*Benchmark' -Dtrackandtrace.benchmark=true
+ */
+public class EncryptionBenchmark {
+    private static final int[] SIZES = new int[] {10000, 100000};
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Benchmark.isEnabled());
+    }
+
+    @Test
+    public void encrypt() throws Exception {
+        for (int size : SIZES) {
+            final byte[] csv = exportCsv(size);
+            final DiscardingOutputStream output = new DiscardingOutputStream();
+            Benchmark.Result result = Benchmark.measure("encrypt " + size + " (" + csv.length / 1024 + "KB)",
+                    chunks(csv), WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Operation() {
+                        @Override
+                        void run() throws IOException {
+                            OutputStream out = new EncryptedExportOutputStream(output, KEY);
+                            out.write(csv);
+                            out.close();
+                        }
+                    });
+            printThroughput(result);
+        }
+    }
+
+    @Test
+    public void decrypt() throws Exception {
+        for (int size : SIZES) {
+            final byte[] csv = exportCsv(size);
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            OutputStream out = new EncryptedExportOutputStream(sealed, KEY);
+            out.write(csv);
+            out.close();
+            final byte[] encrypted = sealed.toByteArray();
+            final byte[] buffer = new byte[8192];
+            Benchmark.Result result = Benchmark.measure("decrypt " + size + " (" + csv.length / 1024 + "KB)",
+                    chunks(csv), WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Operation() {
+                        @Override
+                        void run() throws IOException {
+                            InputStream in = new EncryptedExportInputStream(new ByteArrayInputStream(encrypted), KEY);
+                            long total = 0;
+                            int read;
+                            while ((read = in.read(buffer)) != -1)
+                                total += read;
+                            in.close();
+                            assertEquals(csv.length, total);
+                        }
+                    });
+            printThroughput(result);
+        }
+    }
+
+    private static byte[] exportCsv(int size) throws IOException {
+        List<SingleMessage> messages = new SyntheticInbox(size, System.currentTimeMillis()).messages();
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        CsvRecordWriter writer = new CsvRecordWriter(csv);
+        for (SingleMessage message : messages)
+            writer.writeMessage(message, "benchmark");
+        writer.close();
+        return csv.toByteArray();
+    }
+
+    private static int chunks(byte[] data) {
+        return Math.max(1, (data.length + EncryptedExportOutputStream.DEFAULT_CHUNK_SIZE - 1) /
+                EncryptedExportOutputStream.DEFAULT_CHUNK_SIZE);
+    }
+
+    private static void printThroughput(Benchmark.Result result) {
+        System.out.println(String.format(Locale.ENGLISH, "%-28s %9.1f MB/s", result.name,
+                result.opsPerSecond * EncryptedExportOutputStream.DEFAULT_CHUNK_SIZE / (1024 * 1024)));
+    }
+
+    /**
+     * Output stream which discards everything written to it.
+     */
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
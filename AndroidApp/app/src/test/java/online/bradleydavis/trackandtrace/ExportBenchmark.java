@@ -0,0 +1,251 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmarks for the export hot paths (row decoding, CSV encoding, segment writing and retention) over synthetic inboxes of 1k, 10k and 100k messages,
+ * contact tracing queries over 200k messages and as-you-type searches over 50k messages.
+ * These are skipped unless run with -Dtrackandtrace.benchmark=true, for example:
+ * ./gradlew testDebugUnitTest --tests '*Benchmark' -Dtrackandtrace.benchmark=true
+ */
+public class ExportBenchmark {
+    private static final int[] SIZES = new int[] {1000, 10000, 100000};
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+    private static final String DEVICE_ID = "benchmark";
+    private static final int TRACE_SIZE = 200000;
+    private static final int TRACE_QUERIES = 100;
+    private static final int SEARCH_SIZE = 50000;
+    private static final long FRAME_NANOS = 16000000L;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Benchmark.isEnabled());
+    }
+
+    @Test
+    public void decodeRows() throws Exception {
+        for (int size : SIZES) {
+            final SyntheticInbox inbox = new SyntheticInbox(size, System.currentTimeMillis());
+            final long[] checksum = new long[1];
+            Benchmark.measure("decodeRows " + size, size, WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Operation() {
+                @Override
+                void run() {
+                    FakeInboxCursor cursor = inbox.cursor();
+                    MessageRowReader rowReader = new MessageRowReader(cursor);
+                    while (cursor.moveToNext())
+                        checksum[0] += rowReader.read(cursor).getId();
+                    cursor.close();
+                }
+            });
+            assertTrue(checksum[0] > 0);
+        }
+    }
+
+    @Test
+    public void encodeRecords() throws Exception {
+        for (int size : SIZES) {
+            final SyntheticInbox inbox = new SyntheticInbox(size, System.currentTimeMillis());
+            final CountingOutputStream output = new CountingOutputStream();
+            Benchmark.measure("encodeRecords " + size, size, WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Operation() {
+                @Override
+                void run() throws IOException {
+                    //fresh messages each run so that the date and time are formatted every time.
+                    CsvRecordWriter writer = new CsvRecordWriter(output);
+                    for (int i = 0; i < inbox.size(); i++) {
+                        writer.writeMessage(new SingleMessage(inbox.ids[i], inbox.addresses[i],
+                                inbox.dates[i], inbox.bodies[i]), DEVICE_ID);
+                    }
+                    writer.flush();
+                }
+            });
+            assertTrue(output.count > 0);
+        }
+    }
+
+    @Test
+    public void writeSegments() throws Exception {
+        for (int size : SIZES) {
+            final SyntheticInbox inbox = new SyntheticInbox(size, System.currentTimeMillis());
+            final List<SingleMessage> messages = inbox.messages();
+            final File[] directory = new File[1];
+            Benchmark.measure("writeSegments " + size, size, WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Operation() {
+                @Override
+                void setUp() throws IOException {
+                    directory[0] = createDirectory();
+                }
+
+                @Override
+                void run() throws IOException {
+                    DailySegmentStore.Appender appender = new DailySegmentStore(directory[0], DEVICE_ID).openAppender();
+                    for (SingleMessage message : messages)
+                        appender.append(message);
+                    appender.close();
+                }
+
+                @Override
+                void tearDown() {
+                    deleteDirectory(directory[0]);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void retentionPurge() throws Exception {
+        for (int size : SIZES) {
+            final SyntheticInbox inbox = new SyntheticInbox(size, System.currentTimeMillis());
+            final List<SingleMessage> messages = inbox.messages();
+            //expire the older half of the window.
+            final long cutoff = inbox.dates[size / 2];
+            final File[] directory = new File[1];
+            Benchmark.measure("retentionPurge " + size, size, WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Operation() {
+                @Override
+                void setUp() throws IOException {
+                    directory[0] = createDirectory();
+                    DailySegmentStore.Appender appender = new DailySegmentStore(directory[0], DEVICE_ID).openAppender();
+                    for (SingleMessage message : messages)
+                        appender.append(message);
+                    appender.close();
+                }
+
+                @Override
+                void run() {
+                    assertFalse(new DailySegmentStore(directory[0], DEVICE_ID).deleteBefore(cutoff).isEmpty());
+                }
+
+                @Override
+                void tearDown() {
+                    deleteDirectory(directory[0]);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void traceQueries() throws Exception {
+        //the busiest venue expected: 200k check-ins over the 21 day window.
+        final SyntheticInbox inbox = new SyntheticInbox(TRACE_SIZE, System.currentTimeMillis());
+        final List<SingleMessage> messages = inbox.messages();
+        Benchmark.Result build = Benchmark.measure("traceBuild " + TRACE_SIZE, TRACE_SIZE, WARMUP_RUNS, MEASURED_RUNS,
+                new Benchmark.Operation() {
+                    @Override
+                    void run() {
+                        assertEquals(TRACE_SIZE, new ContactTraceIndex(messages).size());
+                    }
+                });
+        assertTrue(build.maxRunNanos < 1000000000L);
+
+        final ContactTraceIndex index = new ContactTraceIndex(messages);
+        final long visit = 90 * 60 * 1000;
+        final long[] found = new long[1];
+        Benchmark.Result queries = Benchmark.measure("traceQueries " + TRACE_SIZE, TRACE_QUERIES, WARMUP_RUNS,
+                MEASURED_RUNS, new Benchmark.Operation() {
+                    @Override
+                    void run() throws IOException {
+                        for (int i = 0; i < TRACE_QUERIES; i++) {
+                            int position = (int) (((long) i * TRACE_SIZE) / TRACE_QUERIES);
+                            long from = inbox.dates[position];
+                            List<SingleMessage> contacts = index.findOverlapping(inbox.addresses[position],
+                                    inbox.dates[0], from + visit, visit);
+                            found[0] += contacts.size() + index.findBetween(from, from + visit).size();
+                            ContactTraceIndex.writeCsv(contacts, new CountingOutputStream(), DEVICE_ID);
+                        }
+                    }
+                });
+        assertTrue(found[0] > 0);
+        assertTrue(queries.maxRunNanos / TRACE_QUERIES < 1000000000L);
+    }
+
+    @Test
+    public void searchQueries() throws Exception {
+        final SyntheticInbox inbox = new SyntheticInbox(SEARCH_SIZE, System.currentTimeMillis());
+        final List<SingleMessage> messages = inbox.messages();
+        Benchmark.Result build = Benchmark.measure("searchBuild " + SEARCH_SIZE, SEARCH_SIZE, WARMUP_RUNS,
+                MEASURED_RUNS, new Benchmark.Operation() {
+                    @Override
+                    void run() {
+                        MessageSearchIndex built = new MessageSearchIndex();
+                        built.addAll(messages);
+                        assertEquals(SEARCH_SIZE, built.size());
+                    }
+                });
+        assertTrue(build.maxRunNanos < 2000000000L);
+
+        final MessageSearchIndex index = new MessageSearchIndex();
+        index.addAll(messages);
+
+        //every query typed a character at a time, as the search box sends them.
+        final List<String> queries = new ArrayList<String>();
+        for (String typed : new String[] {inbox.addresses[SEARCH_SIZE / 2].substring(3), "07700",
+                inbox.addresses[SEARCH_SIZE / 3].substring(9), "table 1", "smith arr"}) {
+            for (int length = 1; length <= typed.length(); length++)
+                queries.add(typed.substring(0, length));
+        }
+        final long[] found = new long[1];
+        final long[] slowest = new long[1];
+        Benchmark.measure("searchQueries " + SEARCH_SIZE, queries.size(), WARMUP_RUNS, MEASURED_RUNS,
+                new Benchmark.Operation() {
+                    @Override
+                    void setUp() {
+                        //only the last run is kept, so the JIT has warmed up.
+                        slowest[0] = 0;
+                    }
+
+                    @Override
+                    void run() {
+                        for (String query : queries) {
+                            long start = System.nanoTime();
+                            found[0] += index.search(query, MessageSearchIndex.DEFAULT_LIMIT).size();
+                            slowest[0] = Math.max(slowest[0], System.nanoTime() - start);
+                        }
+                    }
+                });
+        assertTrue(found[0] > 0);
+        //a result must be ready within a frame of the debounce ending.
+        assertTrue(slowest[0] < FRAME_NANOS);
+    }
+
+    /**
+     * Output stream which discards everything written to it, counting the bytes.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("export-benchmark", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+        return directory;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,241 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the export bundle writer.
+ */
+public class ExportBundleWriterTest {
+    private File directory;
+    private DailySegmentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("bundle", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+        store = new DailySegmentStore(directory, "device-1");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void update_bundlesEverySegmentWithItsManifest() throws Exception {
+        append(1, dayAt(2020, Calendar.OCTOBER, 3, 12), "first");
+        append(2, dayAt(2020, Calendar.OCTOBER, 3, 13), "table 4\nby the window");
+        append(3, dayAt(2020, Calendar.OCTOBER, 4, 9), "third");
+
+        List<File> written = new ExportBundleWriter(directory).update();
+
+        assertEquals(2, written.size());
+        Map<String, byte[]> entries = readBundle(new File(directory, ExportBundleWriter.BUNDLE_NAME));
+        assertEquals(3, entries.size());
+        File segment = new File(directory, "messages-2020-10-03.csv");
+        assertArrayEquals(readFile(segment), entries.get("messages-2020-10-03.csv"));
+
+        String manifest = new String(entries.get(ExportBundleWriter.MANIFEST_ENTRY), "UTF-8");
+        String[] lines = manifest.split("\r\n");
+        assertEquals("segment,bytes,modified,records,crc32,sha256", lines[0]);
+        String[] fields = lines[1].split(",");
+        assertEquals("messages-2020-10-03.csv", fields[0]);
+        assertEquals(String.valueOf(segment.length()), fields[1]);
+        assertEquals("2", fields[3]);
+        assertEquals(sha256(readFile(segment)), fields[5]);
+        assertTrue(lines[2].startsWith("messages-2020-10-04.csv,"));
+        assertArrayEquals(readFile(new File(directory, ExportBundleWriter.MANIFEST_NAME)),
+                entries.get(ExportBundleWriter.MANIFEST_ENTRY));
+    }
+
+    @Test
+    public void update_withNoChanges_leavesTheBundleAlone() throws IOException {
+        append(1, dayAt(2020, Calendar.OCTOBER, 3, 12), "first");
+        assertFalse(new ExportBundleWriter(directory).update().isEmpty());
+
+        //a new writer picks the manifest up from disk.
+        assertTrue(new ExportBundleWriter(directory).update().isEmpty());
+    }
+
+    @Test
+    public void update_goesByTheManifestInsideTheBundle() throws IOException {
+        append(1, dayAt(2020, Calendar.OCTOBER, 3, 12), "first");
+        new ExportBundleWriter(directory).update();
+        File manifestFile = new File(directory, ExportBundleWriter.MANIFEST_NAME);
+        byte[] manifest = readFile(manifestFile);
+        assertTrue(manifestFile.delete());
+
+        //the bundle is still up to date, so only the copy of its manifest is written again.
+        List<File> written = new ExportBundleWriter(directory).update();
+        assertEquals(1, written.size());
+        assertEquals(manifestFile, written.get(0));
+        assertArrayEquals(manifest, readFile(manifestFile));
+    }
+
+    @Test
+    public void update_afterAppend_rebuildsOnlyTheChangedEntry() throws IOException {
+        append(1, dayAt(2020, Calendar.OCTOBER, 3, 12), "first");
+        append(2, dayAt(2020, Calendar.OCTOBER, 4, 12), "second");
+        ExportBundleWriter writer = new ExportBundleWriter(directory);
+        writer.update();
+        List<ExportBundleWriter.Entry> before = writer.getManifest();
+
+        append(3, dayAt(2020, Calendar.OCTOBER, 4, 13), "third");
+        assertFalse(writer.update().isEmpty());
+        List<ExportBundleWriter.Entry> after = writer.getManifest();
+
+        assertSame(before.get(0), after.get(0));
+        assertEquals(2, after.get(1).records);
+        assertFalse(before.get(1).sha256.equals(after.get(1).sha256));
+        assertBundleHoldsSegments();
+    }
+
+    @Test
+    public void update_afterRestart_copiesUnchangedEntriesFromThePreviousBundle() throws IOException {
+        append(1, dayAt(2020, Calendar.OCTOBER, 3, 12), "first");
+        append(2, dayAt(2020, Calendar.OCTOBER, 4, 12), "second");
+        new ExportBundleWriter(directory).update();
+
+        append(3, dayAt(2020, Calendar.OCTOBER, 4, 13), "third");
+        append(4, dayAt(2020, Calendar.OCTOBER, 5, 9), "fourth");
+        ExportBundleWriter writer = new ExportBundleWriter(directory);
+        assertFalse(writer.update().isEmpty());
+
+        assertEquals(3, writer.getManifest().size());
+        assertBundleHoldsSegments();
+        //the central directory is read by ZipFile rather than the local headers.
+        ZipFile zipFile = new ZipFile(new File(directory, ExportBundleWriter.BUNDLE_NAME));
+        try {
+            assertEquals(4, zipFile.size());
+            assertNotNull(zipFile.getEntry("messages-2020-10-03.csv"));
+        }
+        finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void update_afterSegmentDeleted_dropsItFromTheBundle() throws IOException {
+        append(1, dayAt(2020, Calendar.OCTOBER, 1, 12), "old");
+        append(2, dayAt(2020, Calendar.OCTOBER, 3, 12), "new");
+        ExportBundleWriter writer = new ExportBundleWriter(directory);
+        writer.update();
+
+        store.deleteBefore(dayAt(2020, Calendar.OCTOBER, 2, 12));
+        assertFalse(writer.update().isEmpty());
+
+        Map<String, byte[]> entries = readBundle(new File(directory, ExportBundleWriter.BUNDLE_NAME));
+        assertFalse(entries.containsKey("messages-2020-10-01.csv"));
+        assertEquals(1, writer.getManifest().size());
+    }
+
+    @Test
+    public void update_pastTheZipLimit_writesTheWholeBundleThroughZipOutputStream() throws IOException {
+        append(1, dayAt(2020, Calendar.OCTOBER, 3, 12), "first");
+        append(2, dayAt(2020, Calendar.OCTOBER, 4, 12), "second");
+        long total = 0;
+        for (File segment : DailySegmentStore.listSegments(directory))
+            total += segment.length();
+
+        //the segments fit, but not once their headers are added, so the entry by entry build gives up part way.
+        ExportBundleWriter writer = new ExportBundleWriter(directory, total + 1);
+        assertEquals(2, writer.update().size());
+        assertBundleHoldsSegments();
+        assertEquals(2, writer.getManifest().size());
+        assertFalse(new File(directory, ExportBundleWriter.BUNDLE_NAME + ".tmp").exists());
+
+        //the segments alone are past the limit, so the build goes straight to ZipOutputStream.
+        append(3, dayAt(2020, Calendar.OCTOBER, 4, 13), "third");
+        assertFalse(new ExportBundleWriter(directory, 1).update().isEmpty());
+        assertBundleHoldsSegments();
+
+        //a writer without the limit reads the manifest of that bundle and finds it up to date.
+        assertTrue(new ExportBundleWriter(directory).update().isEmpty());
+    }
+
+    private void assertBundleHoldsSegments() throws IOException {
+        Map<String, byte[]> entries = readBundle(new File(directory, ExportBundleWriter.BUNDLE_NAME));
+        List<File> segments = DailySegmentStore.listSegments(directory);
+        assertEquals(segments.size() + 1, entries.size());
+        for (File segment : segments)
+            assertArrayEquals(readFile(segment), entries.get(segment.getName()));
+    }
+
+    private void append(long id, long timestamp, String body) throws IOException {
+        DailySegmentStore.Appender appender = store.openAppender();
+        assertEquals(0, appender.append(new SingleMessage(id, "07700900123", timestamp, body)));
+        appender.close();
+    }
+
+    private static long dayAt(int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static Map<String, byte[]> readBundle(File bundle) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(bundle));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null)
+                entries.put(entry.getName(), readAll(zip));
+        }
+        finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readAll(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
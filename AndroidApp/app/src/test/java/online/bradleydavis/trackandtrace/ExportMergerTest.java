@@ -0,0 +1,119 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for merging the exports of several devices.
+ * The merger is part of the collector library, but is tested here so that it merges segments written by the app.
+ */
+public class ExportMergerTest {
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("merge", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void merge_ordersByTimeAndDropsCopiesAcrossDevices() throws IOException {
+        long noon = dayAt(2020, Calendar.OCTOBER, 3, 12);
+        File first = export("a", new SingleMessage(1, "07700900001", noon + 120000, "third"),
+                new SingleMessage(2, "07700900002", noon, "first"),
+                new SingleMessage(3, "07700900003", dayAt(2020, Calendar.OCTOBER, 4, 9), "fifth"));
+        //the same message restored onto a second phone gets a different _id.
+        File second = export("b", new SingleMessage(1, "07700900002", noon, "first"),
+                new SingleMessage(2, "07700900004", noon + 60000, "second"),
+                new SingleMessage(3, "07700900005", noon + 180000, "fourth"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ExportMerger.Result result = ExportMerger.merge(Arrays.asList(
+                ExportMerger.Source.fromDirectory(first), ExportMerger.Source.fromDirectory(second)), output);
+
+        assertEquals(6, result.recordsRead);
+        assertEquals(5, result.recordsWritten);
+        assertEquals(1, result.duplicates);
+        List<List<String>> records = read(output.toByteArray());
+        List<String> bodies = new ArrayList<String>();
+        for (List<String> record : records)
+            bodies.add(record.get(0));
+        assertEquals(Arrays.asList("first", "second", "third", "fourth", "fifth"), bodies);
+        assertEquals("b", records.get(1).get(5));
+    }
+
+    @Test
+    public void recordsWithoutTheExactTime_areMalformed() throws IOException {
+        long noon = dayAt(2020, Calendar.OCTOBER, 3, 12);
+        File directory = export("a", new SingleMessage(1, "07700900001", noon, "table 4"));
+        //a record in the layout used before the exact time, device id and content hash were added.
+        OutputStream out = new FileOutputStream(new File(directory, "messages-2020-10-03.csv"), true);
+        out.write("\"table 4, window\",07700900002,12:30,03/10/2020\r\nnot a record\r\n".getBytes("UTF-8"));
+        out.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ExportMerger.Result result = ExportMerger.merge(
+                Arrays.asList(ExportMerger.Source.fromDirectory(directory)), output);
+
+        assertEquals(1, result.recordsRead);
+        assertEquals(1, result.recordsWritten);
+        assertEquals(2, result.malformed);
+        assertEquals("table 4", read(output.toByteArray()).get(0).get(0));
+    }
+
+    private File export(String deviceId, SingleMessage... messages) throws IOException {
+        File directory = new File(root, deviceId);
+        assertTrue(directory.mkdirs());
+        DailySegmentStore.Appender appender = new DailySegmentStore(directory, deviceId).openAppender();
+        for (SingleMessage message : messages)
+            assertEquals(0, appender.append(message));
+        appender.close();
+        return directory;
+    }
+
+    private static List<List<String>> read(byte[] csv) throws IOException {
+        List<List<String>> records = new ArrayList<List<String>>();
+        CsvRecordReader reader = new CsvRecordReader(new ByteArrayInputStream(csv));
+        List<String> fields = new ArrayList<String>();
+        while (reader.readRecord(fields))
+            records.add(new ArrayList<String>(fields));
+        reader.close();
+        return records;
+    }
+
+    private static long dayAt(int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,92 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the export scheduler.
+ */
+public class ExportSchedulerTest {
+    private ExportScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+
+    @Test
+    public void burstOfRequests_isMergedIntoOneRun() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        scheduler = new ExportScheduler(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 200);
+
+        for (int i = 0; i < 50; i++)
+            scheduler.requestUpdate();
+
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void requestDuringRun_queuesExactlyOneMoreRun() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler = new ExportScheduler(new Runnable() {
+            @Override
+            public void run() {
+                if (runs.incrementAndGet() == 1) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, 0);
+
+        scheduler.requestUpdate();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++)
+            scheduler.requestUpdate();
+        assertFalse(scheduler.isIdle());
+        release.countDown();
+
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void awaitIdle_timesOutWhileRunning() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler = new ExportScheduler(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+
+        scheduler.requestUpdate();
+        assertFalse(scheduler.awaitIdle(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,259 @@
+package online.bradleydavis.trackandtrace;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * In-memory cursor over a synthetic inbox with the columns _id, address, body and date.
+ * This lets the row decoding run on the JVM without a content provider.
+ */
+public class FakeInboxCursor implements Cursor {
+    private static final String[] COLUMNS = new String[] {"_id", "address", "body", "date"};
+
+    private final SyntheticInbox inbox;
+    private int position = -1;
+    private boolean closed = false;
+
+    public FakeInboxCursor(SyntheticInbox inbox) {
+        this.inbox = inbox;
+    }
+
+    @Override
+    public int getCount() {
+        return inbox.size();
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int newPosition) {
+        if (newPosition < 0) {
+            position = -1;
+            return false;
+        }
+        if (newPosition >= inbox.size()) {
+            position = inbox.size();
+            return false;
+        }
+        position = newPosition;
+        return true;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(inbox.size() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return position == 0 && inbox.size() > 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return position == inbox.size() - 1 && inbox.size() > 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return inbox.size() == 0 || position == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return inbox.size() == 0 || position == inbox.size();
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0)
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return COLUMNS[columnIndex];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS.clone();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        switch (columnIndex) {
+            case 0:
+                return Long.toString(inbox.ids[position]);
+            case 1:
+                return inbox.addresses[position];
+            case 2:
+                return inbox.bodies[position];
+            case 3:
+                return Long.toString(inbox.dates[position]);
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        switch (columnIndex) {
+            case 0:
+                return inbox.ids[position];
+            case 3:
+                return inbox.dates[position];
+            default:
+                return Long.parseLong(getString(columnIndex));
+        }
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return getLong(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        return getLong(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return columnIndex == 0 || columnIndex == 3 ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return getString(columnIndex) == null;
+    }
+
+    @Override
+    @Deprecated
+    public void deactivate() {
+    }
+
+    @Override
+    @Deprecated
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver cr, Uri uri) {
+    }
+
+    @Override
+    public Uri getNotificationUri() {
+        return null;
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    @Override
+    public void setExtras(Bundle extras) {
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return null;
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return null;
+    }
+}
@@ -0,0 +1,91 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the message cache.
+ */
+public class MessageCacheTest {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void pages_areTakenByIdNewestFirst() {
+        long now = System.currentTimeMillis();
+        MessageCache cache = new MessageCache(100);
+        for (int id = 1; id <= 5; id++)
+            cache.put(new SingleMessage(id, "0770090000" + id, now - (6 - id) * HOUR, "message " + id));
+
+        assertEquals(Arrays.asList(4L, 3L), ids(cache.getBefore(5, 2)));
+        assertEquals(Arrays.asList(2L, 1L), ids(cache.getBefore(3, 10)));
+        assertEquals(Arrays.asList(4L, 5L), ids(cache.getAfter(3)));
+        assertEquals(5, cache.getNewestId());
+        assertEquals(now - 5 * HOUR, cache.getOldestTimestamp());
+    }
+
+    @Test
+    public void putting_anExistingId_replacesIt() {
+        long now = System.currentTimeMillis();
+        MessageCache cache = new MessageCache(100);
+        cache.put(new SingleMessage(1, "07700900001", now - 2 * HOUR, "before"));
+        cache.put(new SingleMessage(1, "07700900001", now - HOUR, "after"));
+
+        assertEquals(1, cache.size());
+        assertEquals("after", cache.get(1).getMessageContent());
+    }
+
+    @Test
+    public void expiredMessages_areDroppedOldestFirst() {
+        long now = System.currentTimeMillis();
+        MessageCache cache = new MessageCache(100);
+        //ids out of time order, as they are after an inbox restore.
+        cache.put(new SingleMessage(1, "07700900001", now - 3 * HOUR, "newest"));
+        cache.put(new SingleMessage(2, "07700900002", now - 20 * HOUR, "oldest"));
+        cache.put(new SingleMessage(3, "07700900003", now - 10 * HOUR, "middle"));
+        cache.put(new SingleMessage(4, "07700900004", RetentionEngine.getCutoff() - HOUR, "already expired"));
+
+        assertNull(cache.get(4));
+        assertEquals(1, cache.evictBefore(now - 15 * HOUR));
+        assertEquals(Arrays.asList(3L, 1L), ids(cache.getBefore(Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    public void exceedingTheSize_dropsTheOldestAndLeavesTheCacheIncomplete() {
+        long now = System.currentTimeMillis();
+        MessageCache cache = new MessageCache(2);
+        cache.put(new SingleMessage(1, "07700900001", now - 3 * HOUR, "first"));
+        cache.put(new SingleMessage(2, "07700900002", now - 2 * HOUR, "second"));
+        cache.markComplete();
+        assertTrue(cache.isComplete());
+
+        cache.put(new SingleMessage(3, "07700900003", now - HOUR, "third"));
+        assertFalse(cache.isComplete());
+        assertNull(cache.get(1));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void invalidate_emptiesTheCache() {
+        MessageCache cache = new MessageCache(10);
+        cache.put(new SingleMessage(1, "07700900001", System.currentTimeMillis(), "first"));
+        cache.markComplete();
+        cache.invalidate();
+
+        assertFalse(cache.isComplete());
+        assertEquals(0, cache.size());
+        assertEquals(-1, cache.getNewestId());
+        assertEquals(-1, cache.getOldestTimestamp());
+    }
+
+    private static List<Long> ids(List<SingleMessage> messages) {
+        List<Long> ids = new ArrayList<Long>();
+        for (SingleMessage message : messages)
+            ids.add(message.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,141 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the message search index.
+ */
+public class MessageSearchIndexTest {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static MessageSearchIndex createIndex(long now) {
+        MessageSearchIndex index = new MessageSearchIndex();
+        index.add(new SingleMessage(1, "+447700900123", now - 5 * HOUR, "Checked in at table 4"));
+        index.add(new SingleMessage(2, "07700 900456", now - 4 * HOUR, "Table 12, party of four"));
+        index.add(new SingleMessage(3, "+447700900123", now - 3 * HOUR, "Leaving now, thanks"));
+        index.add(new SingleMessage(4, "01632960789", now - 2 * HOUR, "Smith, table for two"));
+        return index;
+    }
+
+    @Test
+    public void numberPrefix_matchesEveryFormat() {
+        MessageSearchIndex index = createIndex(System.currentTimeMillis());
+
+        assertEquals(Arrays.asList(3L, 1L), ids(index.search("+44 7700", 10)));
+        assertEquals(Arrays.asList(3L, 2L, 1L), ids(index.search("07700", 10)));
+        assertEquals(Arrays.asList(4L), ids(index.search("0163", 10)));
+    }
+
+    @Test
+    public void numberSuffix_matchesTheLastDigits() {
+        MessageSearchIndex index = createIndex(System.currentTimeMillis());
+
+        assertEquals(Arrays.asList(3L, 1L), ids(index.search("0123", 10)));
+        assertEquals(Arrays.asList(2L), ids(index.search("456", 10)));
+        assertTrue(index.search("999", 10).isEmpty());
+    }
+
+    @Test
+    public void words_matchTheLastWordAsAPrefix() {
+        MessageSearchIndex index = createIndex(System.currentTimeMillis());
+
+        assertEquals(Arrays.asList(4L, 2L, 1L), ids(index.search("tab", 10)));
+        assertEquals(Arrays.asList(1L), ids(index.search("Table 4", 10)));
+        assertEquals(Arrays.asList(4L), ids(index.search("smith tab", 10)));
+        assertTrue(index.search("party of fourteen", 10).isEmpty());
+    }
+
+    @Test
+    public void finishedWords_areNotMatchedAsPrefixes() {
+        MessageSearchIndex index = createIndex(System.currentTimeMillis());
+
+        assertEquals(Arrays.asList(4L, 3L, 2L, 1L), ids(index.search("t", 10)));
+        assertTrue(index.search("t ", 10).isEmpty());
+    }
+
+    @Test
+    public void results_areNewestFirstAndLimited() {
+        MessageSearchIndex index = createIndex(System.currentTimeMillis());
+
+        assertEquals(Arrays.asList(4L, 2L), ids(index.search("table", 2)));
+        assertTrue(index.search("   ", 10).isEmpty());
+        assertTrue(index.search("table", 0).isEmpty());
+    }
+
+    @Test
+    public void addedMessages_areFoundAndDuplicatesIgnored() {
+        long now = System.currentTimeMillis();
+        MessageSearchIndex index = createIndex(now);
+        index.add(new SingleMessage(5, "07700900123", now - HOUR, "Back again"));
+        index.add(new SingleMessage(5, "07700900123", now - HOUR, "Back again"));
+
+        assertEquals(5, index.size());
+        assertEquals(Arrays.asList(5L, 3L, 1L), ids(index.search("900123", 10)));
+        assertEquals(Arrays.asList(5L), ids(index.search("again", 10)));
+    }
+
+    @Test
+    public void numbers_whichAreAnotherNumbersKey_areFoundByTheirLastDigits() {
+        long now = System.currentTimeMillis();
+        MessageSearchIndex index = new MessageSearchIndex();
+        //the first number's key is the digits of the second.
+        index.add(new SingleMessage(1, "+447700900123", now - 2 * HOUR, "Checked in"));
+        index.add(new SingleMessage(2, "7700900123", now - HOUR, "Checked in"));
+
+        assertEquals(Arrays.asList(2L, 1L), ids(index.search("0123", 10)));
+        assertEquals(Arrays.asList(2L, 1L), ids(index.search("7700", 10)));
+        assertEquals(Arrays.asList(1L), ids(index.search("44", 10)));
+    }
+
+    @Test
+    public void removeBefore_dropsExpiredMessages() {
+        long now = System.currentTimeMillis();
+        MessageSearchIndex index = createIndex(now);
+
+        assertEquals(2, index.removeBefore(now - 4 * HOUR));
+        assertEquals(0, index.removeBefore(now - 4 * HOUR));
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList(3L), ids(index.search("0123", 10)));
+        assertEquals(Arrays.asList(4L), ids(index.search("table", 10)));
+    }
+
+    @Test
+    public void denseNumberQueries_returnTheNewestMatches() {
+        long now = System.currentTimeMillis();
+        //enough numbers that a short prefix matches more of them than are gathered from the index.
+        MessageSearchIndex inOrder = new MessageSearchIndex();
+        MessageSearchIndex outOfOrder = new MessageSearchIndex();
+        for (int id = 1; id <= 3000; id++) {
+            inOrder.add(new SingleMessage(id, "+447700" + (900000 + id), now - (3001 - id) * 1000, "hello"));
+            outOfOrder.add(new SingleMessage(3001 - id, "+447700" + (903001 - id), now - id * 1000, "hello"));
+        }
+
+        List<Long> newest = new ArrayList<Long>();
+        for (long id = 3000; id > 2990; id--)
+            newest.add(id);
+        assertEquals(newest, ids(inOrder.search("+44 7700", 10)));
+        assertEquals(newest, ids(inOrder.search("07700", 10)));
+        assertEquals(newest, ids(outOfOrder.search("+44 7700", 10)));
+        assertEquals(Arrays.asList(2999L, 1999L, 999L), ids(inOrder.search("999", 10)));
+    }
+
+    @Test
+    public void isNumberQuery_allowsPhonePunctuation() {
+        assertTrue(MessageSearchIndex.isNumberQuery("+44 (0)7700-900"));
+        assertFalse(MessageSearchIndex.isNumberQuery("table 4"));
+        assertFalse(MessageSearchIndex.isNumberQuery("+ -"));
+    }
+
+    private static List<Long> ids(List<SingleMessage> messages) {
+        List<Long> ids = new ArrayList<Long>();
+        for (SingleMessage message : messages)
+            ids.add(message.getId());
+        return ids;
+    }
+}
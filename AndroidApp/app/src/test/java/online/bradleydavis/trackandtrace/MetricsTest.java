@@ -0,0 +1,85 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the metrics layer.
+ */
+public class MetricsTest {
+
+    @Before
+    public void setUp() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void whileDisabled_nothingIsRecorded() {
+        Metrics.increment(Metrics.ROWS_SCANNED);
+        Metrics.record(Metrics.EXPORT_ROWS, 10);
+        long start = Metrics.startTimer();
+        Metrics.stopTimer(Metrics.EXPORT_UPDATE, start);
+
+        assertEquals(0, start);
+        assertEquals(0, Metrics.getCount(Metrics.ROWS_SCANNED));
+        assertNull(Metrics.getSnapshot(Metrics.EXPORT_ROWS));
+        assertNull(Metrics.getSnapshot(Metrics.EXPORT_UPDATE));
+    }
+
+    @Test
+    public void timerStartedWhileDisabled_isNotRecorded() {
+        long start = Metrics.startTimer();
+        Metrics.setEnabled(true);
+        Metrics.stopTimer(Metrics.EXPORT_UPDATE, start);
+
+        assertNull(Metrics.getSnapshot(Metrics.EXPORT_UPDATE));
+    }
+
+    @Test
+    public void counters_accumulate() {
+        Metrics.setEnabled(true);
+        Metrics.increment(Metrics.MEDIA_SCANS);
+        Metrics.add(Metrics.MEDIA_SCANS, 4);
+
+        assertEquals(5, Metrics.getCount(Metrics.MEDIA_SCANS));
+        assertTrue(Metrics.dump().contains("media.scans 5\n"));
+    }
+
+    @Test
+    public void histogram_reportsBucketPercentiles() {
+        Metrics.setEnabled(true);
+        for (int i = 1; i <= 100; i++)
+            Metrics.record(Metrics.EXPORT_ROWS, i);
+
+        Metrics.Snapshot snapshot = Metrics.getSnapshot(Metrics.EXPORT_ROWS);
+        assertEquals(100, snapshot.count);
+        assertEquals(5050, snapshot.sum);
+        assertEquals(1, snapshot.min);
+        assertEquals(100, snapshot.max);
+        //50 falls in the bucket [32, 64) and 90 and 99 in [64, 128), which is capped at the maximum.
+        assertEquals(63, snapshot.p50);
+        assertEquals(100, snapshot.p90);
+        assertEquals(100, snapshot.p99);
+    }
+
+    @Test
+    public void reset_discardsEverything() {
+        Metrics.setEnabled(true);
+        Metrics.increment(Metrics.MEDIA_SCANS);
+        Metrics.record(Metrics.EXPORT_ROWS, 1);
+        Metrics.reset();
+
+        assertEquals(0, Metrics.getCount(Metrics.MEDIA_SCANS));
+        assertNull(Metrics.getSnapshot(Metrics.EXPORT_ROWS));
+    }
+}
@@ -0,0 +1,71 @@
+package online.bradleydavis.trackandtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic inbox of check-in messages spread over the 21 day retention window, for benchmarks.
+ * The same seed always produces the same inbox.
+ */
+public class SyntheticInbox {
+    private static final String[] TEMPLATES = new String[] {
+            "Checked in at table %d",
+            "%d people, name Smith, arrived 7pm",
+            "Hi, checking in for %d, thanks\nSee you soon",
+            "Table %d, party of 4, phone if needed, cheers",
+    };
+
+    final long[] ids;
+    final String[] addresses;
+    final String[] bodies;
+    final long[] dates;
+
+    /**
+     * Constructor which generates the inbox.
+     *
+     * @param size the number of messages.
+     * @param newest the date of the newest message (epoch millis).
+     */
+    public SyntheticInbox(int size, long newest) {
+        Random random = new Random(size);
+        ids = new long[size];
+        addresses = new String[size];
+        bodies = new String[size];
+        dates = new long[size];
+
+        //oldest first, evenly spread across 21 days, as the provider stores them.
+        long span = 21L * 24 * 60 * 60 * 1000;
+        for (int i = 0; i < size; i++) {
+            ids[i] = i + 1;
+            addresses[i] = "+447700" + (900000 + random.nextInt(100000));
+            bodies[i] = String.format(TEMPLATES[random.nextInt(TEMPLATES.length)], random.nextInt(50));
+            dates[i] = newest - span + (span * i) / size;
+        }
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Method to get a cursor over the inbox, projected as the exporter queries it.
+     *
+     * @return a new cursor.
+     */
+    public FakeInboxCursor cursor() {
+        return new FakeInboxCursor(this);
+    }
+
+    /**
+     * Method to get the inbox as decoded messages.
+     *
+     * @return the messages, oldest first.
+     */
+    public List<SingleMessage> messages() {
+        List<SingleMessage> messages = new ArrayList<SingleMessage>(size());
+        for (int i = 0; i < size(); i++)
+            messages.add(new SingleMessage(ids[i], addresses[i], dates[i], bodies[i]));
+        return messages;
+    }
+}
@@ -0,0 +1,111 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Class which streams records from RFC 4180 CSV in UTF-8, as the app's CsvRecordWriter writes them.
+ * Quoted fields may contain commas, escaped quotes and line breaks. Records may end with CRLF or a bare LF.
+ * A single field buffer is reused for every record.
+ *
+ * @author Bradley Davis
+ */
+public class CsvRecordReader implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int NONE = -2;
+
+    private final Reader in;
+    private final StringBuilder field = new StringBuilder(256);
+    private int pushedBack = NONE;
+
+    /**
+     * Constructor for the reader.
+     *
+     * @param inputStream the stream to read from. It is closed when this reader is closed.
+     */
+    public CsvRecordReader(InputStream inputStream) {
+        this.in = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Method to read the next record.
+     *
+     * @param fields the list to fill with the fields of the record. It is cleared first.
+     * @return whether or not a record was read, false at the end of the input.
+     * @throws IOException if the input could not be read.
+     */
+    public boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = read();
+        if (c == -1)
+            return false;
+
+        field.setLength(0);
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1)
+                    break;
+                if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        field.append('"');
+                    }
+                    else {
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                }
+                else {
+                    field.append((char) c);
+                }
+            }
+            else if (c == -1 || c == '\n') {
+                break;
+            }
+            else if (c == '\r') {
+                int next = read();
+                if (next != '\n')
+                    pushedBack = next;
+                break;
+            }
+            else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                wasQuoted = false;
+            }
+            else if (c == '"' && field.length() == 0 && !wasQuoted) {
+                quoted = true;
+                wasQuoted = true;
+            }
+            else {
+                field.append((char) c);
+            }
+            c = read();
+        }
+        fields.add(field.toString());
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != NONE) {
+            int c = pushedBack;
+            pushedBack = NONE;
+            return c;
+        }
+        return in.read();
+    }
+}
@@ -0,0 +1,164 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.AAD_LENGTH;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.CHUNK_HEADER_LENGTH;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.FINAL_CHUNK;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.HEADER_LENGTH;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.MAGIC;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.MAX_CHUNK_SIZE;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.NONCE_LENGTH;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.NONCE_PREFIX_LENGTH;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.TAG_LENGTH;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.TRANSFORMATION;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.readInt;
+import static online.bradleydavis.trackandtrace.EncryptedExportOutputStream.writeInt;
+
+/**
+ * Stream which verifies and decrypts an export written by EncryptedExportOutputStream, a chunk at a time.
+ * No plaintext is returned from a chunk until the whole chunk has been authenticated, and the end of the stream is
+ * only reported once the last chunk has been, so a tampered or truncated export fails with an IOException rather than
+ * returning partial data.
+ *
+ * @author Bradley Davis
+ */
+public class EncryptedExportInputStream extends InputStream {
+    private final InputStream in;
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] plain;
+    private final byte[] sealed;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private final byte[] aad = new byte[AAD_LENGTH];
+    private int position = 0;
+    private int count = 0;
+    private int chunkNumber = 0;
+    private boolean lastChunkRead = false;
+
+    /**
+     * Constructor for the stream. The header is read and checked straight away.
+     *
+     * @param in the stream to read the encrypted export from. It is closed when this stream is closed.
+     * @param key the key the export was encrypted with.
+     * @throws IOException if the header could not be read or is not valid.
+     */
+    public EncryptedExportInputStream(InputStream in, SecretKey key) throws IOException {
+        this.in = in;
+        this.key = key;
+        readFully(aad, 0, HEADER_LENGTH);
+        if (readInt(aad, 0) != MAGIC)
+            throw new IOException("not an encrypted export");
+        int chunkSize = readInt(aad, 4);
+        //the buffers are sized from the header, so it is checked before anything is allocated.
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+            throw new IOException("invalid chunk size " + chunkSize);
+
+        this.plain = new byte[chunkSize];
+        this.sealed = new byte[chunkSize + TAG_LENGTH];
+        System.arraycopy(aad, 8, nonce, 0, NONCE_PREFIX_LENGTH);
+        try {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return plain[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int copied = Math.min(len, count - position);
+        System.arraycopy(plain, position, b, off, copied);
+        position += copied;
+        return copied;
+    }
+
+    @Override
+    public int available() {
+        return count - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Method to make sure there is plaintext to return, reading chunks until one has some.
+     *
+     * @return false once the last chunk has been read and returned.
+     * @throws IOException if a chunk could not be read or failed authentication.
+     */
+    private boolean fill() throws IOException {
+        while (position == count) {
+            if (lastChunkRead)
+                return false;
+            readChunk();
+        }
+        return true;
+    }
+
+    /**
+     * Method to read, verify and decrypt the next chunk.
+     *
+     * @throws IOException if the chunk could not be read or failed authentication.
+     */
+    private void readChunk() throws IOException {
+        readFully(aad, HEADER_LENGTH, CHUNK_HEADER_LENGTH);
+        int chunkHeader = readInt(aad, HEADER_LENGTH);
+        boolean last = (chunkHeader & FINAL_CHUNK) != 0;
+        int length = chunkHeader & ~FINAL_CHUNK;
+        if (length > plain.length)
+            throw new IOException("invalid chunk length " + length);
+
+        readFully(sealed, 0, length + TAG_LENGTH);
+        writeInt(nonce, NONCE_PREFIX_LENGTH, chunkNumber++);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad);
+            count = cipher.doFinal(sealed, 0, length + TAG_LENGTH, plain, 0);
+        }
+        catch (AEADBadTagException e) {
+            throw new IOException("chunk " + (chunkNumber - 1) + " failed authentication", e);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        position = 0;
+
+        if (last) {
+            lastChunkRead = true;
+            if (in.read() != -1)
+                throw new IOException("data after the last chunk");
+        }
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read == -1)
+                throw new EOFException("encrypted export is truncated");
+            offset += read;
+            length -= read;
+        }
+    }
+}
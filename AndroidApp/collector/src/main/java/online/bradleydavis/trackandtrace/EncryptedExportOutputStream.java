@@ -0,0 +1,190 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Stream which encrypts an export with AES-GCM as it is written, a chunk at a time, so that exports of any size can be
+ * encrypted with two fixed buffers and verified and decrypted as a stream by EncryptedExportInputStream.
+ * The stream starts with a header of a magic number, the chunk size and a random nonce prefix. Each chunk is then
+ * written as its length, with the top bit set on the last chunk, followed by the ciphertext and tag. Every chunk has
+ * its own nonce (the prefix followed by the chunk number), and the header and chunk length are authenticated with it,
+ * so chunks cannot be reordered, dropped or moved between exports, and a truncated export is detected.
+ * This has no Android dependencies so that the collector can use the same format.
+ *
+ * @author Bradley Davis
+ */
+public class EncryptedExportOutputStream extends OutputStream {
+    static final int MAGIC = 0x54544531; //TTE1
+    static final int HEADER_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 8;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int CHUNK_HEADER_LENGTH = 4;
+    static final int FINAL_CHUNK = 0x80000000;
+    static final int AAD_LENGTH = HEADER_LENGTH + CHUNK_HEADER_LENGTH;
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final OutputStream out;
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] plain;
+    private final byte[] sealed;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private final byte[] aad = new byte[AAD_LENGTH];
+    private int count = 0;
+    private int chunkNumber = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor for the stream, using the default chunk size.
+     *
+     * @param out the stream to write the encrypted export to. It is closed when this stream is closed.
+     * @param key the 128 or 256 bit AES key.
+     * @throws IOException if the header could not be written or the key cannot be used.
+     */
+    public EncryptedExportOutputStream(OutputStream out, SecretKey key) throws IOException {
+        this(out, key, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor for the stream.
+     *
+     * @param out the stream to write the encrypted export to. It is closed when this stream is closed.
+     * @param key the 128 or 256 bit AES key.
+     * @param chunkSize how much plaintext each chunk holds, up to MAX_CHUNK_SIZE.
+     * @throws IOException if the header could not be written or the key cannot be used.
+     */
+    public EncryptedExportOutputStream(OutputStream out, SecretKey key, int chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("invalid chunk size " + chunkSize);
+
+        this.out = out;
+        this.key = key;
+        this.plain = new byte[chunkSize];
+        this.sealed = new byte[chunkSize + TAG_LENGTH];
+        try {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        //the header is written once and then authenticated with every chunk.
+        writeInt(aad, 0, MAGIC);
+        writeInt(aad, 4, chunkSize);
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        random.nextBytes(prefix);
+        System.arraycopy(prefix, 0, aad, 8, NONCE_PREFIX_LENGTH);
+        System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        out.write(aad, 0, HEADER_LENGTH);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == plain.length)
+            writeChunk(false);
+        plain[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            //a full chunk is only sealed once more data arrives, so that the last chunk is always known.
+            if (count == plain.length)
+                writeChunk(false);
+            int copied = Math.min(len, plain.length - count);
+            System.arraycopy(b, off, plain, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Data still in the current chunk is not written until the chunk is full or
+     * the stream is closed, as chunks are never split.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the last chunk, which may be empty, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            writeChunk(true);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Method to refuse writes once the last chunk has been written, as they could never be encrypted.
+     *
+     * @throws IOException if the stream has been closed.
+     */
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("stream closed");
+    }
+
+    /**
+     * Method to encrypt and write the current chunk.
+     *
+     * @param last whether or not this is the last chunk of the export.
+     * @throws IOException if the chunk could not be written or encrypted.
+     */
+    private void writeChunk(boolean last) throws IOException {
+        if (chunkNumber == -1)
+            throw new IOException("export too large to encrypt");
+
+        int chunkHeader = count | (last ? FINAL_CHUNK : 0);
+        writeInt(aad, HEADER_LENGTH, chunkHeader);
+        writeInt(nonce, NONCE_PREFIX_LENGTH, chunkNumber++);
+        int sealedLength;
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad);
+            sealedLength = cipher.doFinal(plain, 0, count, sealed, 0);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        out.write(aad, HEADER_LENGTH, CHUNK_HEADER_LENGTH);
+        out.write(sealed, 0, sealedLength);
+        count = 0;
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+}
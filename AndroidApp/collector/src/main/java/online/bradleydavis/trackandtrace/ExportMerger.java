@@ -0,0 +1,299 @@
+package online.bradleydavis.trackandtrace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Class which merges the exports of several devices into one time ordered CSV stream without duplicates.
+ * Each device's segments are read a day at a time and sorted by time then content hash, and the devices are then
+ * merged with a k-way merge. Copies of the same message sort next to each other, so only the previous record has to
+ * be remembered to drop them, and memory is bounded by one day of records per device however large the exports are.
+ * Records without the exact time, device id and content hash are counted as malformed and left out.
+ * Only the collector merges exports, so this is part of the collector library rather than the app. It reads the
+ * segments and writes the CSV the way the app's DailySegmentStore and CsvRecordWriter do.
+ *
+ * @author Bradley Davis
+ */
+public class ExportMerger {
+    private static final int FIELDS = 7;
+    private static final String SEGMENT_PREFIX = "messages-";
+    private static final String SEGMENT_EXT = ".csv";
+    private static final String RECORD_TERMINATOR = "\r\n";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final Comparator<Record> RECORD_ORDER = new Comparator<Record>() {
+        @Override
+        public int compare(Record a, Record b) {
+            if (a.timestamp != b.timestamp)
+                return a.timestamp < b.timestamp ? -1 : 1;
+            return a.contentHash.compareTo(b.contentHash);
+        }
+    };
+
+    /**
+     * Class holding a single exported record.
+     */
+    public static class Record {
+        public final String body;
+        public final String phoneNumber;
+        public final String time;
+        public final String date;
+        public final long timestamp;
+        public final String deviceId;
+        public final String contentHash;
+
+        Record(String body, String phoneNumber, String time, String date, long timestamp, String deviceId,
+               String contentHash) {
+            this.body = body;
+            this.phoneNumber = phoneNumber;
+            this.time = time;
+            this.date = date;
+            this.timestamp = timestamp;
+            this.deviceId = deviceId;
+            this.contentHash = contentHash;
+        }
+    }
+
+    /**
+     * Class describing the outcome of a merge.
+     */
+    public static class Result {
+        public final long recordsRead;
+        public final long recordsWritten;
+        public final long duplicates;
+        public final long malformed;
+
+        Result(long recordsRead, long recordsWritten, long duplicates, long malformed) {
+            this.recordsRead = recordsRead;
+            this.recordsWritten = recordsWritten;
+            this.duplicates = duplicates;
+            this.malformed = malformed;
+        }
+
+        @Override
+        public String toString() {
+            return "read " + recordsRead + ", wrote " + recordsWritten + ", dropped " + duplicates +
+                    " duplicates and " + malformed + " malformed records";
+        }
+    }
+
+    /**
+     * Class which reads the export of a single device in time order, one day segment at a time.
+     */
+    public static class Source {
+        private final List<File> segments;
+        private final List<String> fields = new ArrayList<String>(FIELDS);
+        private List<Record> day = new ArrayList<Record>();
+        private int nextSegment = 0;
+        private int position = 0;
+        private long recordsRead = 0;
+        private long malformed = 0;
+
+        /**
+         * Constructor for a source.
+         *
+         * @param segments the segment files of the device, oldest day first.
+         */
+        public Source(List<File> segments) {
+            this.segments = segments;
+        }
+
+        /**
+         * Method to create a source from a directory of daily segments, such as a copy of a device's export folder.
+         *
+         * @param directory the directory the segments are in.
+         * @return the source.
+         */
+        public static Source fromDirectory(File directory) {
+            List<File> segments = new ArrayList<File>();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_EXT))
+                        segments.add(file);
+                }
+            }
+            //segment names contain the day as yyyy-MM-dd, so name order is day order.
+            Collections.sort(segments);
+            return new Source(segments);
+        }
+
+        /**
+         * Method to get the next record without consuming it.
+         *
+         * @return the next record or null if the source is exhausted.
+         * @throws IOException if a segment could not be read.
+         */
+        private Record peek() throws IOException {
+            while (position == day.size()) {
+                if (nextSegment == segments.size())
+                    return null;
+                loadDay(segments.get(nextSegment++));
+            }
+            return day.get(position);
+        }
+
+        private Record next() throws IOException {
+            Record record = peek();
+            if (record != null)
+                position++;
+            return record;
+        }
+
+        /**
+         * Method to read and sort every record of one day segment.
+         *
+         * @param segment the segment file.
+         * @throws IOException if the segment could not be read.
+         */
+        private void loadDay(File segment) throws IOException {
+            day = new ArrayList<Record>();
+            position = 0;
+            CsvRecordReader reader = new CsvRecordReader(new FileInputStream(segment));
+            try {
+                while (reader.readRecord(fields)) {
+                    Record record = parse(fields);
+                    if (record == null) {
+                        malformed++;
+                        continue;
+                    }
+                    day.add(record);
+                }
+            }
+            finally {
+                reader.close();
+            }
+            recordsRead += day.size();
+            //records are written in _id order, which is only roughly time order.
+            Collections.sort(day, RECORD_ORDER);
+        }
+
+        /**
+         * Method to turn the fields of a CSV record into a record.
+         *
+         * @param fields the fields of the record.
+         * @return the record or null if it is malformed.
+         */
+        private static Record parse(List<String> fields) {
+            if (fields.size() < FIELDS)
+                return null;
+            try {
+                return new Record(fields.get(0), fields.get(1), fields.get(2), fields.get(3),
+                        Long.parseLong(fields.get(4)), fields.get(5), fields.get(6));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Method to merge the exports of several devices into one stream.
+     *
+     * @param sources the exports to merge, one per device.
+     * @param out the stream to write the merged CSV to. It is flushed but left open.
+     * @return what was read and written.
+     * @throws IOException if an export could not be read or the output written.
+     */
+    public static Result merge(List<Source> sources, OutputStream out) throws IOException {
+        //each source is in the queue once, ordered by its next record.
+        PriorityQueue<Source> queue = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                try {
+                    return RECORD_ORDER.compare(a.peek(), b.peek());
+                }
+                catch (IOException e) {
+                    //the head of a source in the queue is always loaded already.
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        for (Source source : sources) {
+            if (source.peek() != null)
+                queue.add(source);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        StringBuilder line = new StringBuilder(256);
+        Record previous = null;
+        long written = 0;
+        long duplicates = 0;
+        while (!queue.isEmpty()) {
+            Source source = queue.poll();
+            Record record = source.next();
+            if (source.peek() != null)
+                queue.add(source);
+
+            if (previous != null && RECORD_ORDER.compare(previous, record) == 0) {
+                duplicates++;
+                continue;
+            }
+            writeRecord(writer, line, record);
+            written++;
+            previous = record;
+        }
+        writer.flush();
+
+        long read = 0;
+        long malformed = 0;
+        for (Source source : sources) {
+            read += source.recordsRead;
+            malformed += source.malformed;
+        }
+        return new Result(read, written, duplicates, malformed);
+    }
+
+    /**
+     * Method to write a record in the layout of the segments: body, phone number, time (HH:mm), date (dd/MM/yyyy),
+     * time (epoch millis), device id, content hash.
+     *
+     * @param writer the writer for the merged CSV.
+     * @param line a buffer to build the record in.
+     * @param record the record to write.
+     * @throws IOException if the output could not be written.
+     */
+    private static void writeRecord(Writer writer, StringBuilder line, Record record) throws IOException {
+        line.setLength(0);
+        appendField(line, record.body).append(',');
+        appendField(line, record.phoneNumber).append(',');
+        appendField(line, record.time).append(',');
+        appendField(line, record.date).append(',');
+        line.append(record.timestamp).append(',');
+        appendField(line, record.deviceId).append(',');
+        appendField(line, record.contentHash).append(RECORD_TERMINATOR);
+        writer.append(line);
+    }
+
+    /**
+     * Method to append a single field to a record, quoting it if it contains a comma, quote or line break.
+     *
+     * @param line the record being built.
+     * @param value the value of the field.
+     * @return the record being built.
+     */
+    private static StringBuilder appendField(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return line.append(value);
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                line.append('"');
+            line.append(c);
+        }
+        return line.append('"');
+    }
+}
@@ -0,0 +1,117 @@
+package online.bradleydavis.trackandtrace;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the encrypted export streams.
+ */
+public class EncryptedExportStreamTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @Test
+    public void dataOfEverySize_roundTrips() throws IOException {
+        for (int size : new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 10 * CHUNK_SIZE + 7}) {
+            byte[] data = randomBytes(size);
+            assertArrayEquals(data, decrypt(encrypt(data), KEY));
+        }
+    }
+
+    @Test
+    public void theSameData_neverEncryptsTheSameWay() throws IOException {
+        byte[] data = randomBytes(100);
+        assertFalse(Arrays.equals(encrypt(data), encrypt(data)));
+    }
+
+    @Test
+    public void tamperedChunks_failAuthentication() throws IOException {
+        byte[] sealed = encrypt(randomBytes(3 * CHUNK_SIZE));
+        sealed[sealed.length / 2] ^= 1;
+        assertDecryptFails(sealed, KEY);
+    }
+
+    @Test
+    public void aTruncatedExport_isDetected() throws IOException {
+        byte[] sealed = encrypt(randomBytes(3 * CHUNK_SIZE));
+        //drop the last chunk, which is empty, so every chunk left is whole and authentic.
+        int lastChunk = EncryptedExportOutputStream.CHUNK_HEADER_LENGTH + EncryptedExportOutputStream.TAG_LENGTH;
+        assertDecryptFails(Arrays.copyOf(sealed, sealed.length - lastChunk), KEY);
+    }
+
+    @Test
+    public void theWrongKey_isRejected() throws IOException {
+        byte[] wrong = new byte[32];
+        wrong[0] = 1;
+        assertDecryptFails(encrypt(randomBytes(10)), new SecretKeySpec(wrong, "AES"));
+    }
+
+    @Test
+    public void writingAfterClose_fails() throws IOException {
+        EncryptedExportOutputStream out = new EncryptedExportOutputStream(new ByteArrayOutputStream(), KEY, CHUNK_SIZE);
+        out.write(1);
+        out.close();
+        try {
+            out.write(2);
+            fail("wrote a byte after close");
+        }
+        catch (IOException e) {
+            //expected.
+        }
+        try {
+            out.write(new byte[10], 0, 10);
+            fail("wrote bytes after close");
+        }
+        catch (IOException e) {
+            //expected.
+        }
+    }
+
+    private static byte[] encrypt(byte[] data) throws IOException {
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        EncryptedExportOutputStream out = new EncryptedExportOutputStream(sealed, KEY, CHUNK_SIZE);
+        //write in uneven pieces so that chunks are filled across writes.
+        for (int offset = 0; offset < data.length; offset += 700)
+            out.write(data, offset, Math.min(700, data.length - offset));
+        out.close();
+        return sealed.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] sealed, SecretKey key) throws IOException {
+        InputStream in = new EncryptedExportInputStream(new ByteArrayInputStream(sealed), key);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[500];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            data.write(buffer, 0, read);
+        in.close();
+        return data.toByteArray();
+    }
+
+    private static void assertDecryptFails(byte[] sealed, SecretKey key) {
+        try {
+            decrypt(sealed, key);
+            fail("expected the export to be rejected");
+        }
+        catch (IOException e) {
+            //expected.
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}